@@ -0,0 +1,46 @@
+package net.sitemorph.protostore;
+
+import com.google.protobuf.Message;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Batch operation exception signalling that some rows of a batch failed. Rows
+ * are not rolled back so the results hold the messages of the rows that were
+ * applied, with null for the failed rows whose causes are in the failures map
+ * keyed by row position.
+ */
+public class CrudBatchException extends CrudException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final List<? extends Message> results;
+  private final Map<Integer, CrudException> failures;
+
+  public CrudBatchException(String message, List<? extends Message> results,
+      Map<Integer, CrudException> failures) {
+    super(message);
+    this.results = Collections.unmodifiableList(results);
+    this.failures = Collections.unmodifiableMap(failures);
+  }
+
+  /**
+   * Get the batch results in row order.
+   *
+   * @return applied row messages with null for failed rows.
+   */
+  public List<? extends Message> getResults() {
+    return results;
+  }
+
+  /**
+   * Get the failure cause for each failed row.
+   *
+   * @return map of failed row position to failure.
+   */
+  public Map<Integer, CrudException> getFailures() {
+    return failures;
+  }
+}
@@ -0,0 +1,40 @@
+package net.sitemorph.protostore;
+
+import com.google.protobuf.Message;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of messages from a paginated read along with the opaque token used to
+ * read the following page. Tokens hold the sort key of the last message read
+ * rather than an offset so each page is an index seek and a scan can be
+ * resumed by any store over the same data.
+ */
+public class CrudPage<T extends Message> {
+
+  private final List<T> messages;
+  private final String nextPageToken;
+
+  public CrudPage(List<T> messages, String nextPageToken) {
+    this.messages = Collections.unmodifiableList(messages);
+    this.nextPageToken = nextPageToken;
+  }
+
+  public List<T> getMessages() {
+    return messages;
+  }
+
+  /**
+   * Get the token for the following page.
+   *
+   * @return token to pass to readPage or null if this is the last page.
+   */
+  public String getNextPageToken() {
+    return nextPageToken;
+  }
+
+  public boolean hasNextPage() {
+    return null != nextPageToken;
+  }
+}
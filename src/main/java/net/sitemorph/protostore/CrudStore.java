@@ -1,9 +1,17 @@
 package net.sitemorph.protostore;
 
 
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.FieldMask;
 import com.google.protobuf.Message;
+import net.sitemorph.protostore.helper.BatchResults;
+import net.sitemorph.protostore.helper.FieldMasks;
 
 import java.io.Closeable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * A crud store supporting create read update and delete operations for a proto
@@ -39,6 +47,60 @@ public interface CrudStore<T extends Message> extends Closeable, CrudStream<T> {
    */
   CrudIterator<T> read(T.Builder prototype) throws CrudException;
 
+  /**
+   * Read representations as for read(prototype) restricted to those with a
+   * sort field value inside the range. Results are returned in sort order,
+   * or the direction of the range if it has one, up to the range limit.
+   * Range reads need a sort order so by default a store doesn't support
+   * them.
+   *
+   * @param prototype for the selection of messages
+   * @param range of sort field values to read
+   * @return iterator over representation messages in the range.
+   * @throws CrudException if the store doesn't support range reads
+   */
+  default CrudIterator<T> read(T.Builder prototype, RangeQuery range)
+      throws CrudException {
+    throw new CrudException("Range reads are not supported by " +
+        getClass().getName());
+  }
+
+  /**
+   * Read representations as for read(prototype) with only the fields named
+   * by the mask set, so stores can avoid reading other columns. Projected
+   * messages are partial and may be missing required fields. By default the
+   * whole messages are read and copied into projections.
+   *
+   * @param prototype for the selection of messages
+   * @param fields mask of the top level fields to read
+   * @return iterator over partial representation messages.
+   */
+  default CrudIterator<T> read(T.Builder prototype, FieldMask fields)
+      throws CrudException {
+    List<FieldDescriptor> projected = FieldMasks.getFields(
+        prototype.getDescriptorForType(), fields);
+    return FieldMasks.project(read(prototype), projected);
+  }
+
+  /**
+   * Read one page of the representations matched by read(prototype) in sort
+   * order. Pages are found by seeking past the sort key held in the token, so
+   * reads of later pages don't re-scan earlier ones and a token can be used
+   * with another store over the same data. Pages need a sort order so by
+   * default a store doesn't support them.
+   *
+   * @param prototype for the selection of messages
+   * @param pageToken from the previous page or null for the first page
+   * @param pageSize maximum number of messages in the page
+   * @return the page of messages with the token for the following page.
+   * @throws CrudException if the store doesn't support page reads
+   */
+  default CrudPage<T> readPage(T.Builder prototype, String pageToken,
+      int pageSize) throws CrudException {
+    throw new CrudException("Page reads are not supported by " +
+        getClass().getName());
+  }
+
   /**
    * Read a single message based on a prototype of the message. This method is a
    * special case of the above readAll but returns only one matching record or
@@ -50,6 +112,84 @@ public interface CrudStore<T extends Message> extends Closeable, CrudStream<T> {
    */
   T readOne(T.Builder prototype) throws CrudException;
 
+  /**
+   * Count the representations matched by read(prototype) without reading
+   * them. By default the matches are read and counted.
+   *
+   * @param prototype for the selection of messages
+   * @return number of matching messages
+   */
+  default long count(T.Builder prototype) throws CrudException {
+    CrudIterator<T> matches = read(prototype);
+    try {
+      long count = 0;
+      while (matches.hasNext()) {
+        matches.next();
+        count++;
+      }
+      return count;
+    } finally {
+      matches.close();
+    }
+  }
+
+  /**
+   * Count the representations matched by read(prototype) grouped by the
+   * value of an index field, such as tasks per path. By default the matches
+   * are read and grouped by the value of the named field.
+   *
+   * @param prototype for the selection of messages
+   * @param indexField name of an index field of the store to group by
+   * @return count of matching messages for each index value present
+   * @throws CrudException if the field is not an index of the store
+   */
+  default Map<Object, Long> countBy(T.Builder prototype, String indexField)
+      throws CrudException {
+    FieldDescriptor group = prototype.getDescriptorForType()
+        .findFieldByName(indexField);
+    if (null == group) {
+      throw new CrudException("Unknown group field: " + indexField);
+    }
+    Map<Object, Long> counts = new HashMap<>();
+    CrudIterator<T> matches = read(prototype);
+    try {
+      while (matches.hasNext()) {
+        counts.merge(matches.next().getField(group), 1L, Long::sum);
+      }
+      return counts;
+    } finally {
+      matches.close();
+    }
+  }
+
+  /**
+   * Find the lowest sort field value of the representations matched by
+   * read(prototype). This needs a sort order so by default a store doesn't
+   * support it.
+   *
+   * @param prototype for the selection of messages
+   * @return lowest sort value or null if no message matches
+   * @throws CrudException if the store doesn't support sort aggregates
+   */
+  default Object min(T.Builder prototype) throws CrudException {
+    throw new CrudException("Min is not supported by " +
+        getClass().getName());
+  }
+
+  /**
+   * Find the highest sort field value of the representations matched by
+   * read(prototype). This needs a sort order so by default a store doesn't
+   * support it.
+   *
+   * @param prototype for the selection of messages
+   * @return highest sort value or null if no message matches
+   * @throws CrudException if the store doesn't support sort aggregates
+   */
+  default Object max(T.Builder prototype) throws CrudException {
+    throw new CrudException("Max is not supported by " +
+        getClass().getName());
+  }
+
   /**
    * Update a representation given a builder update. This method relies on
    * internal message fields specific to the implementing class.
@@ -59,6 +199,27 @@ public interface CrudStore<T extends Message> extends Closeable, CrudStream<T> {
    */
   T update(T.Builder builder) throws CrudException;
 
+  /**
+   * Update only the fields named by the mask, leaving the stored values of
+   * other fields untouched. The builder holds the identifier and vector
+   * clock as for update along with the new values of the masked fields,
+   * where an unset field clears the stored value. Stores that write rows
+   * directly return the builder values with the updated vector while stores
+   * holding whole messages return the full updated message. Merging needs
+   * the identifier field of the store so by default a store doesn't support
+   * patches.
+   *
+   * @param builder with the identifier, vector and masked field values.
+   * @param fields mask of the top level fields to write.
+   * @return The updated representation.
+   * @throws CrudException if the store doesn't support patch updates
+   */
+  default T update(T.Builder builder, FieldMask fields)
+      throws CrudException {
+    throw new CrudException("Patch updates are not supported by " +
+        getClass().getName());
+  }
+
   /**
    * Delete a representation. The identifier is dependent on the underlying
    * implementation.
@@ -68,6 +229,70 @@ public interface CrudStore<T extends Message> extends Closeable, CrudStream<T> {
   void delete(T message) throws CrudException;
 
 
+  /**
+   * Create representations for each builder as a batch. Rows are applied
+   * independently so a failure of one row does not stop the others. By
+   * default each row is created in turn.
+   *
+   * @param builders to construct messages from.
+   * @return the constructed messages in builder order.
+   * @throws CrudBatchException listing the failed rows if any fail.
+   */
+  default List<T> createAll(Collection<? extends T.Builder> builders)
+      throws CrudException {
+    BatchResults<T> results = new BatchResults<>();
+    for (T.Builder builder : builders) {
+      try {
+        results.add(create(builder));
+      } catch (CrudException e) {
+        results.fail(e);
+      }
+    }
+    return results.get("Create");
+  }
+
+  /**
+   * Update representations for each builder as a batch with the same vector
+   * clock checks as update, applied per row. By default each row is updated
+   * in turn.
+   *
+   * @param builders with updates applied.
+   * @return the updated messages in builder order.
+   * @throws CrudBatchException listing the failed rows if any fail.
+   */
+  default List<T> updateAll(Collection<? extends T.Builder> builders)
+      throws CrudException {
+    BatchResults<T> results = new BatchResults<>();
+    for (T.Builder builder : builders) {
+      try {
+        results.add(update(builder));
+      } catch (CrudException e) {
+        results.fail(e);
+      }
+    }
+    return results.get("Update");
+  }
+
+  /**
+   * Delete representations as a batch with the same vector clock checks as
+   * delete, applied per row. By default each row is deleted in turn.
+   *
+   * @param messages to delete.
+   * @throws CrudBatchException listing the failed rows if any fail.
+   */
+  default void deleteAll(Collection<T> messages) throws CrudException {
+    BatchResults<T> results = new BatchResults<>();
+    for (T message : messages) {
+      try {
+        delete(message);
+        results.add(message);
+      } catch (CrudException e) {
+        results.fail(e);
+      }
+    }
+    results.get("Delete");
+  }
+
   /**
    * Closable extension which allows support for syntactic language 'sugar'
    *
@@ -0,0 +1,88 @@
+package net.sitemorph.protostore;
+
+/**
+ * Range restriction on the sort field of a store for ordered reads such as
+ * 'tasks with a run time up to now, oldest first, at most 100'. Bounds are
+ * inclusive and optional, and must be of the java type protobuf uses for the
+ * sort field (e.g. Long for int64 fields). A limit of zero reads all matches
+ * and a null direction uses the store's configured sort order.
+ */
+public class RangeQuery {
+
+  private Object lowerBound;
+  private Object upperBound;
+  private int limit;
+  private SortOrder direction;
+
+  private RangeQuery() {}
+
+  public Object getLowerBound() {
+    return lowerBound;
+  }
+
+  public Object getUpperBound() {
+    return upperBound;
+  }
+
+  public boolean hasLowerBound() {
+    return null != lowerBound;
+  }
+
+  public boolean hasUpperBound() {
+    return null != upperBound;
+  }
+
+  public int getLimit() {
+    return limit;
+  }
+
+  public boolean hasLimit() {
+    return 0 < limit;
+  }
+
+  public SortOrder getDirection() {
+    return direction;
+  }
+
+  @Override
+  public String toString() {
+    return "RangeQuery[" + lowerBound + ", " + upperBound + "] limit " +
+        limit + " " + direction;
+  }
+
+  public static class Builder {
+
+    private final RangeQuery result;
+
+    public Builder() {
+      result = new RangeQuery();
+    }
+
+    public Builder setLowerBound(Object lowerBound) {
+      result.lowerBound = lowerBound;
+      return this;
+    }
+
+    public Builder setUpperBound(Object upperBound) {
+      result.upperBound = upperBound;
+      return this;
+    }
+
+    public Builder setLimit(int limit) {
+      if (0 > limit) {
+        throw new IllegalArgumentException("Range limit can't be negative");
+      }
+      result.limit = limit;
+      return this;
+    }
+
+    public Builder setDirection(SortOrder direction) {
+      result.direction = direction;
+      return this;
+    }
+
+    public RangeQuery build() {
+      return result;
+    }
+  }
+}
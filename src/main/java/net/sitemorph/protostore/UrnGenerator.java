@@ -0,0 +1,16 @@
+package net.sitemorph.protostore;
+
+/**
+ * Allocation strategy for the unique resource names of new messages. Stores
+ * using a generator trust it to give unique values and rely on their primary
+ * key to detect the rare collision rather than reading before each create.
+ */
+public interface UrnGenerator {
+
+  /**
+   * Generate a new urn.
+   *
+   * @return urn which is expected to be unique.
+   */
+  String generate();
+}
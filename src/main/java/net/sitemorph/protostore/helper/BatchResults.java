@@ -0,0 +1,50 @@
+package net.sitemorph.protostore.helper;
+
+import com.google.protobuf.Message;
+import net.sitemorph.protostore.CrudBatchException;
+import net.sitemorph.protostore.CrudException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Collects the per row outcome of a batch operation in row order.
+ */
+public class BatchResults<T extends Message> {
+
+  private final List<T> results = new ArrayList<>();
+  private final Map<Integer, CrudException> failures = new TreeMap<>();
+
+  /**
+   * Record the next row as applied.
+   */
+  public void add(T result) {
+    results.add(result);
+  }
+
+  /**
+   * Record the next row as failed.
+   */
+  public void fail(CrudException cause) {
+    failures.put(results.size(), cause);
+    results.add(null);
+  }
+
+  /**
+   * Get the results of all rows.
+   *
+   * @param operation name used to describe failures.
+   * @return results in row order.
+   * @throws CrudBatchException if any row failed.
+   */
+  public List<T> get(String operation) throws CrudBatchException {
+    if (!failures.isEmpty()) {
+      throw new CrudBatchException(operation + " failed for " +
+          failures.size() + " of " + results.size() + " rows", results,
+          failures);
+    }
+    return results;
+  }
+}
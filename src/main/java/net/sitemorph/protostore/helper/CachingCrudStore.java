@@ -0,0 +1,602 @@
+package net.sitemorph.protostore.helper;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.FieldMask;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
+import net.sitemorph.protostore.CrudBatchException;
+import net.sitemorph.protostore.CrudException;
+import net.sitemorph.protostore.CrudIterator;
+import net.sitemorph.protostore.CrudPage;
+import net.sitemorph.protostore.CrudStore;
+import net.sitemorph.protostore.MessageNotFoundException;
+import net.sitemorph.protostore.RangeQuery;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+/**
+ * Read through cache in front of any crud store for tables too large to
+ * preload. Reads by urn, and optionally reads by a single index value, are
+ * answered from a bounded least recently used cache, with other reads passed
+ * straight to the store.
+ *
+ * Entries are evicted once the total weight of the cache passes the maximum,
+ * where each message weighs one unless a weigher is set, and expire a set time
+ * after they were loaded. Writes made through this store invalidate the
+ * entries they affect but changes made to the store by other writers are only
+ * seen once entries expire or are invalidated. The store is safe for
+ * concurrent use if the underlying store is.
+ */
+public class CachingCrudStore<T extends Message> implements CrudStore<T> {
+
+  private CrudStore<T> store;
+  private Message prototype;
+  private FieldDescriptor urnField;
+  private final Set<FieldDescriptor> indexes = new HashSet<>();
+  private long maximumWeight = 10000;
+  private ToLongFunction<? super T> weigher = message -> 1;
+  private long expireNanos = 0;
+
+  // access ordered so iteration starts at the least recently used entry
+  private final LinkedHashMap<Key, Entry> entries =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private long weight = 0;
+  // urn to the cached index results holding the message, so a write can drop
+  // the results of its prior index values without reading them
+  private final Map<Object, Set<Key>> resultKeys = new HashMap<>();
+  // counts invalidations so loads racing a write are not cached
+  private long generation = 0;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  private CachingCrudStore() {}
+
+  @Override
+  public T create(T.Builder builder) throws CrudException {
+    T result = store.create(builder);
+    invalidateIndexes(result);
+    return result;
+  }
+
+  @Override
+  public List<T> createAll(Collection<? extends T.Builder> builders)
+      throws CrudException {
+    List<? extends Message> results = null;
+    try {
+      List<T> created = store.createAll(builders);
+      results = created;
+      return created;
+    } catch (CrudBatchException e) {
+      results = e.getResults();
+      throw e;
+    } finally {
+      // created urns are new so only the results of their index values change
+      for (T.Builder builder : builders) {
+        invalidateIndexes(builder);
+      }
+      for (int i = 0; null != results && i < results.size(); i++) {
+        if (null != results.get(i)) {
+          invalidateIndexes(results.get(i));
+        }
+      }
+    }
+  }
+
+  /**
+   * Read by urn, or by the value of a single cached index field, through the
+   * cache. Other reads are passed to the store.
+   */
+  @Override
+  public CrudIterator<T> read(T.Builder builder) throws CrudException {
+    Key key = getKey(builder);
+    if (null == key) {
+      return store.read(builder);
+    }
+    List<T> messages = get(key);
+    if (null == messages) {
+      messages = load(key);
+    }
+    return new CollectionIterator<>(messages);
+  }
+
+  @Override
+  public T readOne(T.Builder builder) throws CrudException {
+    CrudIterator<T> items = read(builder);
+    if (!items.hasNext()) {
+      items.close();
+      throw new MessageNotFoundException("Message not found: " + builder);
+    }
+    T result = items.next();
+    items.close();
+    return result;
+  }
+
+  @Override
+  public CrudIterator<T> read(T.Builder builder, RangeQuery range)
+      throws CrudException {
+    return store.read(builder, range);
+  }
+
+  @Override
+  public CrudIterator<T> read(T.Builder builder, FieldMask mask)
+      throws CrudException {
+    return store.read(builder, mask);
+  }
+
+  @Override
+  public CrudPage<T> readPage(T.Builder builder, String pageToken,
+      int pageSize) throws CrudException {
+    return store.readPage(builder, pageToken, pageSize);
+  }
+
+  @Override
+  public long count(T.Builder builder) throws CrudException {
+    return store.count(builder);
+  }
+
+  @Override
+  public Map<Object, Long> countBy(T.Builder builder, String indexField)
+      throws CrudException {
+    return store.countBy(builder, indexField);
+  }
+
+  @Override
+  public Object min(T.Builder builder) throws CrudException {
+    return store.min(builder);
+  }
+
+  @Override
+  public Object max(T.Builder builder) throws CrudException {
+    return store.max(builder);
+  }
+
+  @Override
+  public T update(T.Builder builder) throws CrudException {
+    try {
+      return store.update(builder);
+    } finally {
+      invalidateMessage(builder);
+    }
+  }
+
+  /**
+   * Patch through the store, invalidating the index results of the patched
+   * message or, if the patch failed, of the patch values.
+   */
+  @Override
+  public T update(T.Builder builder, FieldMask mask) throws CrudException {
+    T result = null;
+    try {
+      result = store.update(builder, mask);
+      return result;
+    } finally {
+      invalidateMessage(null == result ? builder : result);
+    }
+  }
+
+  @Override
+  public List<T> updateAll(Collection<? extends T.Builder> builders)
+      throws CrudException {
+    try {
+      return store.updateAll(builders);
+    } finally {
+      for (T.Builder builder : builders) {
+        invalidateMessage(builder);
+      }
+    }
+  }
+
+  @Override
+  public void delete(T message) throws CrudException {
+    try {
+      store.delete(message);
+    } finally {
+      invalidateMessage(message);
+    }
+  }
+
+  @Override
+  public void deleteAll(Collection<T> messages) throws CrudException {
+    try {
+      store.deleteAll(messages);
+    } finally {
+      for (T message : messages) {
+        invalidateMessage(message);
+      }
+    }
+  }
+
+  @Override
+  public boolean supportsStreams() {
+    return store.supportsStreams();
+  }
+
+  @Override
+  public Stream<T> stream(T.Builder builder) {
+    return store.stream(builder);
+  }
+
+  @Override
+  public void close() throws CrudException {
+    invalidateAll();
+    store.close();
+  }
+
+  /**
+   * Drop the cached message with a urn, along with the cached index results
+   * holding it, for a message changed or deleted by another writer. Results
+   * for index values it has moved to are only dropped by passing the changed
+   * message to invalidate.
+   */
+  public void invalidate(Object urn) {
+    synchronized (entries) {
+      generation++;
+      removeMessage(urn);
+    }
+  }
+
+  /**
+   * Drop the cached entries affected by a message changed or created by
+   * another writer: its urn entry, the index results holding it and the
+   * index results of its values.
+   */
+  public void invalidate(T message) {
+    invalidateMessage(message);
+  }
+
+  /**
+   * Drop all cached entries.
+   */
+  public void invalidateAll() {
+    synchronized (entries) {
+      generation++;
+      entries.clear();
+      resultKeys.clear();
+      weight = 0;
+    }
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /**
+   * Get the number of cached urn and index entries.
+   */
+  public int getSize() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * Get the key for reads the cache answers: urn reads and reads setting
+   * exactly one cached index field.
+   */
+  private Key getKey(MessageOrBuilder builder) {
+    if (builder.hasField(urnField)) {
+      return new Key(urnField, builder.getField(urnField));
+    }
+    if (indexes.isEmpty()) {
+      return null;
+    }
+    Key key = null;
+    for (FieldDescriptor field : builder.getAllFields().keySet()) {
+      if (!indexes.contains(field) || null != key) {
+        return null;
+      }
+      key = new Key(field, builder.getField(field));
+    }
+    return key;
+  }
+
+  private List<T> get(Key key) {
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (null != entry && 0 != expireNanos &&
+          0 <= System.nanoTime() - entry.expires) {
+        remove(key);
+        entry = null;
+      }
+      if (null == entry) {
+        misses.incrementAndGet();
+        return null;
+      }
+      hits.incrementAndGet();
+      return entry.messages;
+    }
+  }
+
+  /**
+   * Read an entry from the store and cache it unless a write invalidated the
+   * cache while it was being read.
+   */
+  private List<T> load(Key key) throws CrudException {
+    long loadGeneration;
+    synchronized (entries) {
+      loadGeneration = generation;
+    }
+    Message.Builder query = prototype.newBuilderForType()
+        .setField(key.field, key.value);
+    List<T> messages = new ArrayList<>();
+    CrudIterator<T> items = null;
+    try {
+      items = store.read(query);
+      while (items.hasNext()) {
+        messages.add(items.next());
+      }
+    } catch (MessageNotFoundException e) {
+      // some stores signal a missing urn by throwing, from read or next
+    } finally {
+      if (null != items) {
+        items.close();
+      }
+    }
+    messages = Collections.unmodifiableList(messages);
+    long entryWeight = 0;
+    for (T message : messages) {
+      entryWeight += weigher.applyAsLong(message);
+    }
+    synchronized (entries) {
+      if (loadGeneration == generation && entryWeight <= maximumWeight &&
+          !messages.isEmpty()) {
+        Entry entry = new Entry(messages, entryWeight,
+            System.nanoTime() + expireNanos);
+        Entry prior = entries.put(key, entry);
+        if (null != prior) {
+          weight -= prior.weight;
+          unlink(key, prior);
+        }
+        weight += entryWeight;
+        link(key, entry);
+        evict();
+      }
+    }
+    return messages;
+  }
+
+  private void evict() {
+    Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+    while (weight > maximumWeight && eldest.hasNext()) {
+      Map.Entry<Key, Entry> entry = eldest.next();
+      weight -= entry.getValue().weight;
+      eldest.remove();
+      unlink(entry.getKey(), entry.getValue());
+      evictions.incrementAndGet();
+    }
+  }
+
+  private void remove(Key key) {
+    Entry entry = entries.remove(key);
+    if (null != entry) {
+      weight -= entry.weight;
+      unlink(key, entry);
+    }
+  }
+
+  /**
+   * Record the urns of the messages in a cached index result.
+   */
+  private void link(Key key, Entry entry) {
+    if (urnField.equals(key.field)) {
+      return;
+    }
+    for (T message : entry.messages) {
+      resultKeys.computeIfAbsent(message.getField(urnField),
+          urn -> new HashSet<>()).add(key);
+    }
+  }
+
+  private void unlink(Key key, Entry entry) {
+    if (urnField.equals(key.field)) {
+      return;
+    }
+    for (T message : entry.messages) {
+      Object urn = message.getField(urnField);
+      Set<Key> keys = resultKeys.get(urn);
+      if (null != keys) {
+        keys.remove(key);
+        if (keys.isEmpty()) {
+          resultKeys.remove(urn);
+        }
+      }
+    }
+  }
+
+  /**
+   * Drop the cached urn entry of a written message, the index results of its
+   * written values and the cached index results it was loaded into. A result
+   * for a prior value it wasn't loaded into doesn't hold it so is unchanged.
+   */
+  private void invalidateMessage(MessageOrBuilder message) {
+    synchronized (entries) {
+      generation++;
+      removeMessage(message.getField(urnField));
+      removeIndexes(message);
+    }
+  }
+
+  private void invalidateIndexes(MessageOrBuilder message) {
+    if (indexes.isEmpty()) {
+      return;
+    }
+    synchronized (entries) {
+      generation++;
+      removeIndexes(message);
+    }
+  }
+
+  private void removeIndexes(MessageOrBuilder message) {
+    for (FieldDescriptor field : indexes) {
+      remove(new Key(field, message.getField(field)));
+    }
+  }
+
+  /**
+   * Drop the urn entry of a message and the cached index results it was
+   * loaded into.
+   */
+  private void removeMessage(Object urn) {
+    remove(new Key(urnField, urn));
+    Set<Key> prior = resultKeys.get(urn);
+    if (null != prior) {
+      for (Key key : new ArrayList<>(prior)) {
+        remove(key);
+      }
+    }
+  }
+
+  /**
+   * Cache key of a urn or an index field value.
+   */
+  private static final class Key {
+
+    private final FieldDescriptor field;
+    private final Object value;
+
+    Key(FieldDescriptor field, Object value) {
+      this.field = field;
+      this.value = value;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return field.equals(key.field) && value.equals(key.value);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(field, value);
+    }
+  }
+
+  private final class Entry {
+
+    private final List<T> messages;
+    private final long weight;
+    private final long expires;
+
+    Entry(List<T> messages, long weight, long expires) {
+      this.messages = messages;
+      this.weight = weight;
+      this.expires = expires;
+    }
+  }
+
+  public static class Builder<M extends Message> {
+
+    private final CachingCrudStore<M> result = new CachingCrudStore<>();
+    private M.Builder prototype;
+    private String urnField;
+    private final Set<String> indexes = new HashSet<>();
+
+    public Builder<M> setStore(CrudStore<M> store) {
+      result.store = store;
+      return this;
+    }
+
+    public Builder<M> setPrototype(M.Builder prototype) {
+      this.prototype = prototype;
+      return this;
+    }
+
+    public Builder<M> setUrnField(String urnField) {
+      this.urnField = urnField;
+      return this;
+    }
+
+    /**
+     * Also cache the results of reads by a single value of this field.
+     */
+    public Builder<M> addIndexField(String name) {
+      indexes.add(name);
+      return this;
+    }
+
+    /**
+     * Set the maximum total weight of cached entries, each weighing the
+     * total weight of its messages. Defaults to 10000.
+     */
+    public Builder<M> setMaximumWeight(long maximumWeight) {
+      if (0 >= maximumWeight) {
+        throw new IllegalArgumentException("Maximum weight must be positive");
+      }
+      result.maximumWeight = maximumWeight;
+      return this;
+    }
+
+    /**
+     * Set the weight of a message, for example its serialized size to bound
+     * the cache by memory. Defaults to one per message.
+     */
+    public Builder<M> setWeigher(ToLongFunction<? super M> weigher) {
+      result.weigher = weigher;
+      return this;
+    }
+
+    /**
+     * Set how long entries are kept after being loaded. Zero, the default,
+     * keeps entries until evicted or invalidated.
+     */
+    public Builder<M> setExpireAfterWrite(long duration, TimeUnit unit) {
+      if (0 > duration) {
+        throw new IllegalArgumentException("Expiry can't be negative");
+      }
+      result.expireNanos = unit.toNanos(duration);
+      return this;
+    }
+
+    public CachingCrudStore<M> build() throws CrudException {
+      if (null == result.store) {
+        throw new CrudException("Store to cache required but not set");
+      }
+      if (null == prototype) {
+        throw new CrudException("Protobuf prototype required but not set");
+      }
+      result.prototype = prototype.getDefaultInstanceForType();
+      for (FieldDescriptor field :
+          prototype.getDescriptorForType().getFields()) {
+        if (field.getName().equals(urnField)) {
+          result.urnField = field;
+        } else if (indexes.contains(field.getName())) {
+          result.indexes.add(field);
+        }
+      }
+      if (null == result.urnField) {
+        throw new CrudException("Could not locate urn field: " + urnField);
+      }
+      if (result.indexes.size() != indexes.size()) {
+        throw new CrudException("An undefined index field was specified: " +
+            indexes);
+      }
+      return result;
+    }
+  }
+}
@@ -21,6 +21,10 @@ public class CollectionIterator<T extends Message> implements CrudIterator<T> {
     this.iterator = data.iterator();
   }
 
+  public CollectionIterator(Iterator<T> iterator) {
+    this.iterator = iterator;
+  }
+
   @Override
   public T next() throws CrudException {
     return iterator.next();
@@ -0,0 +1,84 @@
+package net.sitemorph.protostore.helper;
+
+import com.google.protobuf.Message;
+import net.sitemorph.protostore.CrudException;
+import net.sitemorph.protostore.CrudIterator;
+
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Adapt storage iterators to lazy streams. Items are pulled from the
+ * iterator only as the stream consumes them so short circuiting operations
+ * like limit and findFirst stop reading the underlying cursor. The iterator
+ * is closed when it runs out or when the stream is closed, so streams over
+ * database reads should be used in a try with resources block.
+ */
+public class CrudStreams {
+
+  private CrudStreams() {}
+
+  /**
+   * Stream the items of a storage iterator.
+   *
+   * @param items to stream, closed with the stream
+   * @param ordered true if the iterator returns items in a defined sort order
+   * @return sequential lazy stream
+   */
+  public static <T extends Message> Stream<T> stream(CrudIterator<T> items,
+      boolean ordered) {
+    int characteristics = Spliterator.NONNULL;
+    if (ordered) {
+      characteristics |= Spliterator.ORDERED;
+    }
+    IteratorSpliterator<T> spliterator =
+        new IteratorSpliterator<>(items, characteristics);
+    return StreamSupport.stream(spliterator, false)
+        .onClose(spliterator::close);
+  }
+
+  private static class IteratorSpliterator<T extends Message>
+      extends Spliterators.AbstractSpliterator<T> {
+
+    private final CrudIterator<T> items;
+    private boolean closed = false;
+
+    IteratorSpliterator(CrudIterator<T> items, int characteristics) {
+      super(Long.MAX_VALUE, characteristics);
+      this.items = items;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+      if (closed) {
+        return false;
+      }
+      try {
+        if (!items.hasNext()) {
+          close();
+          return false;
+        }
+        action.accept(items.next());
+        return true;
+      } catch (CrudException e) {
+        close();
+        throw new IteratorAdaptorException("Storage error streaming items", e);
+      }
+    }
+
+    void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        items.close();
+      } catch (CrudException e) {
+        throw new IteratorAdaptorException("Storage error closing stream", e);
+      }
+    }
+  }
+}
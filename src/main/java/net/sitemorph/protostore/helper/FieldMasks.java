@@ -0,0 +1,103 @@
+package net.sitemorph.protostore.helper;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.FieldMask;
+import com.google.protobuf.Message;
+import net.sitemorph.protostore.CrudException;
+import net.sitemorph.protostore.CrudIterator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Field mask support for projection reads. Stores map columns to top level
+ * fields so masks may only name top level fields of the stored message.
+ */
+public class FieldMasks {
+
+  private FieldMasks() {}
+
+  /**
+   * Resolve the fields named by a mask in descriptor order.
+   *
+   * @param descriptor of the stored message
+   * @param mask of top level field names
+   * @return fields to read
+   * @throws CrudException if the mask is empty or names an unknown field
+   */
+  public static List<FieldDescriptor> getFields(Descriptor descriptor,
+      FieldMask mask) throws CrudException {
+    Set<String> paths = new HashSet<>(mask.getPathsList());
+    if (paths.isEmpty()) {
+      throw new CrudException("Field mask selects no fields");
+    }
+    List<FieldDescriptor> fields = new ArrayList<>();
+    for (FieldDescriptor field : descriptor.getFields()) {
+      if (paths.remove(field.getName())) {
+        fields.add(field);
+      }
+    }
+    if (!paths.isEmpty()) {
+      throw new CrudException("Field mask paths are not top level fields of " +
+          descriptor.getFullName() + ": " + paths);
+    }
+    return fields;
+  }
+
+  /**
+   * Copy only the given fields of a message, which may leave required fields
+   * unset.
+   */
+  @SuppressWarnings("unchecked")
+  public static <T extends Message> T project(T message,
+      List<FieldDescriptor> fields) {
+    Message.Builder partial = message.newBuilderForType();
+    for (FieldDescriptor field : fields) {
+      if (field.isRepeated() || message.hasField(field)) {
+        partial.setField(field, message.getField(field));
+      }
+    }
+    return (T) partial.buildPartial();
+  }
+
+  /**
+   * Copy the given fields of a source message over a target builder,
+   * clearing those unset in the source.
+   */
+  public static void merge(Message.Builder target, Message.Builder source,
+      List<FieldDescriptor> fields) {
+    for (FieldDescriptor field : fields) {
+      if (field.isRepeated() || source.hasField(field)) {
+        target.setField(field, source.getField(field));
+      } else {
+        target.clearField(field);
+      }
+    }
+  }
+
+  /**
+   * Project each message of an iterator.
+   */
+  public static <T extends Message> CrudIterator<T> project(
+      final CrudIterator<T> items, final List<FieldDescriptor> fields) {
+    return new CrudIterator<T>() {
+      @Override
+      public T next() throws CrudException {
+        return project(items.next(), fields);
+      }
+
+      @Override
+      public boolean hasNext() throws CrudException {
+        return items.hasNext();
+      }
+
+      @Override
+      public void close() throws CrudException {
+        items.close();
+      }
+    };
+  }
+}
@@ -0,0 +1,87 @@
+package net.sitemorph.protostore.helper;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import net.sitemorph.protostore.CrudException;
+import net.sitemorph.protostore.CrudIterator;
+import net.sitemorph.protostore.CrudPage;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Page token encoding for keyset pagination. A token is a partial message of
+ * the stored type holding only the key fields of the last message of a page,
+ * serialised and base 64 encoded, so it carries typed key values without a
+ * custom format.
+ */
+public class PageTokens {
+
+  private PageTokens() {}
+
+  /**
+   * Encode a token holding the key field values of a message.
+   *
+   * @param last message of the page
+   * @param keys fields which together order the page, usually sort then urn
+   * @return url safe page token
+   */
+  public static String encode(Message last, FieldDescriptor... keys) {
+    Message.Builder key = last.newBuilderForType();
+    for (FieldDescriptor field : keys) {
+      key.setField(field, last.getField(field));
+    }
+    return Base64.getUrlEncoder().withoutPadding()
+        .encodeToString(key.buildPartial().toByteArray());
+  }
+
+  /**
+   * Read a page from an iterator which reads past the page end if there are
+   * more messages, then close the iterator.
+   *
+   * @param items in page order starting with the first message of the page
+   * @param pageSize maximum number of messages in the page
+   * @param keys fields to encode in the next page token
+   * @return the page with a next token if more messages were available
+   * @throws CrudException on underlying iteration error
+   */
+  public static <T extends Message> CrudPage<T> readPage(
+      CrudIterator<T> items, int pageSize, FieldDescriptor... keys)
+      throws CrudException {
+    List<T> messages = new ArrayList<>();
+    try {
+      while (messages.size() < pageSize && items.hasNext()) {
+        messages.add(items.next());
+      }
+      String next = null;
+      if (items.hasNext()) {
+        next = encode(messages.get(messages.size() - 1), keys);
+      }
+      return new CrudPage<>(messages, next);
+    } finally {
+      items.close();
+    }
+  }
+
+  /**
+   * Decode a token to a partial message with the key fields set.
+   *
+   * @param prototype of the stored message type
+   * @param token read from a previous page
+   * @return partial message holding the key field values
+   * @throws CrudException if the token is not a valid page token
+   */
+  public static Message decode(Message.Builder prototype, String token)
+      throws CrudException {
+    try {
+      return prototype.clone()
+          .clear()
+          .mergeFrom(Base64.getUrlDecoder().decode(token))
+          .buildPartial();
+    } catch (IllegalArgumentException | InvalidProtocolBufferException e) {
+      throw new CrudException("Invalid page token: " + token, e);
+    }
+  }
+}
@@ -1,19 +1,30 @@
 package net.sitemorph.protostore.helper;
 
 import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.FieldMask;
 import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
+import net.sitemorph.protostore.CrudBatchException;
 import net.sitemorph.protostore.CrudException;
 import net.sitemorph.protostore.CrudIterator;
+import net.sitemorph.protostore.CrudPage;
 import net.sitemorph.protostore.CrudStore;
 import net.sitemorph.protostore.MessageNotFoundException;
+import net.sitemorph.protostore.MessageVectorException;
+import net.sitemorph.protostore.RangeQuery;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Stream;
 
 /**
@@ -23,24 +34,65 @@ import java.util.stream.Stream;
  * conditions.
  *
  * Note: that the preload urn store doesn't respect sort order.
+ *
+ * Index reads look up the messages cached for the index value so cost is in
+ * proportion to the matches. Reads iterate unmodifiable views of the cache
+ * rather than copies, which may be iterated while the store is written.
+ *
+ * In write behind mode updates and deletes are applied to the cache and
+ * queued, and a background thread writes them to the write store in batches,
+ * coalescing repeated writes of a message so the last write wins. Creates
+ * still write through as the write store allocates the urn. Reads passed
+ * through to the write store, such as ranges, pages and aggregates, see
+ * queued writes once they are flushed, though range and page reads return
+ * the cached copy of each message they find. Each write moves the cached
+ * vector on so a stale copy can't overwrite a queued write, and the cached
+ * vector never moves back: coalesced writes move the stored vector on less
+ * so it may fall behind, and later writes are sent against it. A write the
+ * write store rejects is reloaded from the write store as soon as the batch
+ * fails and is reported by the next flush or close.
+ *
+ * The store is safe to share between threads given a write store which is.
+ * Reads never lock: they see each message as of its last completed write,
+ * though an index read racing a write of a message may see it under both or
+ * neither of its old and new values. Writes of a urn are made in turn under
+ * a lock striped by urn, so the cache follows the order in which the write
+ * store applied them, and the cache only changes once the write store has
+ * accepted a write.
  */
 public class PreloadUrnCrudStore<T extends Message> implements CrudStore<T> {
 
   private CrudStore<T> writeStore;
-  private Map<String, T> urnMap = new HashMap<>();
-  private Set<FieldDescriptor> indexes = new HashSet<>();
+  private Map<String, T> urnMap = new ConcurrentHashMap<>();
+  // index field to field value to the messages with that value by urn
+  private final Map<FieldDescriptor, Map<Object, Map<String, T>>> indexes =
+      new HashMap<>();
   private FieldDescriptor urnDescriptor;
+  private FieldDescriptor vectorField;
+  private Message prototype;
+  private WriteBehindQueue<T> writeBehind;
+  private static final int LOCK_STRIPES = 64;
+  // writes of a urn hold the stripe for the urn, batches take theirs in order
+  private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
 
-  private PreloadUrnCrudStore() {}
+  private PreloadUrnCrudStore() {
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+  }
 
   @Override
   public boolean supportsStreams() {
-    return false;
+    return true;
   }
 
   @Override
   public Stream<T> stream(Message.Builder builder) {
-    throw new UnsupportedOperationException();
+    try {
+      return CrudStreams.stream(read(builder), false);
+    } catch (CrudException e) {
+      throw new IteratorAdaptorException("Error opening stream", e);
+    }
   }
 
   public static class Builder<M extends Message> {
@@ -48,6 +100,10 @@ public class PreloadUrnCrudStore<T extends Message> implements CrudStore<T> {
     private CrudStore<M> writeStore;
     private M.Builder prototype;
     private String urnField;
+    private String vectorField;
+    private boolean writeBehind = false;
+    private int maxPendingWrites = 1024;
+    private long flushDelayMillis = 50;
     private Set<String> indexes = new HashSet<>();
 
     public Builder() {}
@@ -72,28 +128,85 @@ public class PreloadUrnCrudStore<T extends Message> implements CrudStore<T> {
       return this;
     }
 
-    public CrudStore<M> build() throws CrudException {
+    /**
+     * Set the vector clock field of a versioned write store, needed in write
+     * behind mode to check and move on cached vectors.
+     */
+    public Builder<M> setVectorField(String vectorField) {
+      this.vectorField = vectorField;
+      return this;
+    }
+
+    /**
+     * Set updates and deletes to be written to the write store by a
+     * background thread rather than by the caller. The write store is then
+     * used from that thread as well as by callers so it must be safe for
+     * concurrent use, such as a SQL store on a data source. Off by default.
+     */
+    public Builder<M> setWriteBehind(boolean writeBehind) {
+      this.writeBehind = writeBehind;
+      return this;
+    }
+
+    /**
+     * Set the number of messages which may have queued writes before writers
+     * wait for the background thread to catch up. Defaults to 1024.
+     */
+    public Builder<M> setMaxPendingWrites(int maxPendingWrites) {
+      if (0 >= maxPendingWrites) {
+        throw new IllegalArgumentException("Pending writes must be positive");
+      }
+      this.maxPendingWrites = maxPendingWrites;
+      return this;
+    }
+
+    /**
+     * Set how long queued writes wait for further writes to coalesce with
+     * before being written. Defaults to 50ms.
+     */
+    public Builder<M> setFlushDelayMillis(long flushDelayMillis) {
+      if (0 > flushDelayMillis) {
+        throw new IllegalArgumentException("Flush delay can't be negative");
+      }
+      this.flushDelayMillis = flushDelayMillis;
+      return this;
+    }
+
+    public PreloadUrnCrudStore<M> build() throws CrudException {
       PreloadUrnCrudStore<M> result = new PreloadUrnCrudStore<>();
       result.writeStore = writeStore;
+      result.prototype = prototype.getDefaultInstanceForType();
 
       for (FieldDescriptor descriptor : prototype.getDescriptorForType().getFields()) {
+        if (descriptor.getName().equals(vectorField)) {
+          result.vectorField = descriptor;
+        }
         if (descriptor.getName().equals(urnField)) {
           result.urnDescriptor = descriptor;
         } else if (indexes.contains(descriptor.getName())) {
-          result.indexes.add(descriptor);
+          result.indexes.put(descriptor, new ConcurrentHashMap<>());
         }
       }
       if (null == result.urnDescriptor) {
         throw new CrudException("Could not locate urn field: " + urnField);
       }
+      if (null != vectorField && null == result.vectorField) {
+        throw new CrudException("Could not locate vector field: " +
+            vectorField);
+      }
 
       CrudIterator<M> priors = writeStore.read(prototype);
       while (priors.hasNext()) {
         M prior = priors.next();
-        String urn = String.valueOf(prior.getField(result.urnDescriptor));
-        result.urnMap.put(urn, prior);
+        result.cache(prior);
       }
       priors.close();
+      if (writeBehind) {
+        result.writeBehind = new WriteBehindQueue<>(writeStore,
+            result.vectorField, result.new WriteBehindListener(),
+            maxPendingWrites, flushDelayMillis);
+        result.writeBehind.start();
+      }
       return result;
     }
   }
@@ -101,40 +214,147 @@ public class PreloadUrnCrudStore<T extends Message> implements CrudStore<T> {
   @Override
   public T create(T.Builder builder) throws CrudException {
     T result = writeStore.create(builder);
-    String urn = String.valueOf(result.getField(urnDescriptor));
-    urnMap.put(urn, result);
+    cache(result);
     return result;
   }
 
+  /**
+   * Create all through the write store, caching the rows that were created
+   * even if others in the batch failed.
+   */
+  @Override
+  public List<T> createAll(Collection<? extends T.Builder> builders)
+      throws CrudException {
+    try {
+      List<T> results = writeStore.createAll(builders);
+      cacheAll(results);
+      return results;
+    } catch (CrudBatchException e) {
+      cacheAll(e.getResults());
+      throw e;
+    }
+  }
+
   @Override
   public CrudIterator<T> read(T.Builder builder) throws CrudException {
     // urn first
     if (builder.hasField(urnDescriptor)) {
       String urn = String.valueOf(builder.getField(urnDescriptor));
-      if (!urnMap.containsKey(urn)) {
+      T message = urnMap.get(urn);
+      if (null == message) {
         throw new MessageNotFoundException("Could not find urn: " + urn);
       }
-      List<T> singleton = new ArrayList<>();
-      singleton.add(urnMap.get(urn));
-      return new CollectionIterator<>(singleton);
+      return new CollectionIterator<>(Collections.singletonList(message));
     }
 
-    // iterate over the index fields, if one set return that
-    for (FieldDescriptor index : indexes) {
-      if (builder.hasField(index)) {
-        List<T> result = new ArrayList<>();
-        for (Entry<String, T> entry : urnMap.entrySet()) {
-          if (builder.getField(index).equals(entry.getValue().getField(index))) {
-            result.add(entry.getValue());
-          }
+    // iterate over the index fields, if one set return its matches
+    for (Entry<FieldDescriptor, Map<Object, Map<String, T>>> index :
+        indexes.entrySet()) {
+      if (builder.hasField(index.getKey())) {
+        Map<String, T> matches = index.getValue().get(
+            builder.getField(index.getKey()));
+        if (null == matches) {
+          return new CollectionIterator<>(Collections.<T>emptyList());
         }
-        return new CollectionIterator<>(result);
+        return new CollectionIterator<>(
+            Collections.unmodifiableCollection(matches.values()));
       }
     }
 
     // return all data
-    List<T> result = new ArrayList<>(urnMap.values());
-    return new CollectionIterator<>(result);
+    return new CollectionIterator<>(
+        Collections.unmodifiableCollection(urnMap.values()));
+  }
+
+  /**
+   * Projections are copied from the preloaded messages.
+   */
+  @Override
+  public CrudIterator<T> read(T.Builder builder, FieldMask mask)
+      throws CrudException {
+    return FieldMasks.project(read(builder),
+        FieldMasks.getFields(builder.getDescriptorForType(), mask));
+  }
+
+  /**
+   * Range reads need the sort order of the underlying store so are passed
+   * through to it.
+   */
+  @Override
+  public CrudIterator<T> read(T.Builder builder, RangeQuery range)
+      throws CrudException {
+    final CrudIterator<T> items = writeStore.read(builder, range);
+    if (null == writeBehind) {
+      return items;
+    }
+    return new CrudIterator<T>() {
+      @Override
+      public T next() throws CrudException {
+        return getLatest(items.next());
+      }
+
+      @Override
+      public boolean hasNext() throws CrudException {
+        return items.hasNext();
+      }
+
+      @Override
+      public void close() throws CrudException {
+        items.close();
+      }
+    };
+  }
+
+  /**
+   * Page reads need the sort order of the underlying store so are passed
+   * through to it.
+   */
+  @Override
+  public CrudPage<T> readPage(T.Builder builder, String pageToken,
+      int pageSize) throws CrudException {
+    CrudPage<T> page = writeStore.readPage(builder, pageToken, pageSize);
+    if (null == writeBehind) {
+      return page;
+    }
+    List<T> messages = new ArrayList<>();
+    for (T message : page.getMessages()) {
+      messages.add(getLatest(message));
+    }
+    return new CrudPage<>(messages, page.getNextPageToken());
+  }
+
+  /**
+   * Get the cached copy of a message read from the write store, which is
+   * ahead of it while writes are queued and keeps its vector once they land.
+   */
+  private T getLatest(T stored) {
+    return urnMap.getOrDefault(String.valueOf(
+        stored.getField(urnDescriptor)), stored);
+  }
+
+  /**
+   * Aggregates are computed by the underlying store which can answer them
+   * without reading the messages.
+   */
+  @Override
+  public long count(T.Builder builder) throws CrudException {
+    return writeStore.count(builder);
+  }
+
+  @Override
+  public Map<Object, Long> countBy(T.Builder builder, String indexField)
+      throws CrudException {
+    return writeStore.countBy(builder, indexField);
+  }
+
+  @Override
+  public Object min(T.Builder builder) throws CrudException {
+    return writeStore.min(builder);
+  }
+
+  @Override
+  public Object max(T.Builder builder) throws CrudException {
+    return writeStore.max(builder);
   }
 
   @Override
@@ -151,23 +371,361 @@ public class PreloadUrnCrudStore<T extends Message> implements CrudStore<T> {
 
   @Override
   public T update(Message.Builder builder) throws CrudException {
-    T updated = writeStore.update(builder);
-    String urn = String.valueOf(updated.getField(urnDescriptor));
-    urnMap.put(urn, updated);
+    String urn = String.valueOf(builder.getField(urnDescriptor));
+    awaitQueueSpace();
+    int[] held = lock(Collections.singleton(urn));
+    try {
+      return write(urn, builder);
+    } finally {
+      unlock(held);
+    }
+  }
+
+  /**
+   * Update holding the urn lock.
+   */
+  private T write(String urn, Message.Builder builder) throws CrudException {
+    T updated;
+    if (null != writeBehind) {
+      updated = writeBehind.update(urn, getCached(urn, builder), builder);
+    } else {
+      updated = writeStore.update(builder);
+    }
+    cache(updated);
     return updated;
   }
 
+  /**
+   * Wait for space in the write behind queue, which must be done before
+   * taking an urn lock as the flush thread takes urn locks.
+   */
+  private void awaitQueueSpace() throws CrudException {
+    if (null != writeBehind) {
+      writeBehind.awaitSpace();
+    }
+  }
+
+  /**
+   * Patch through the write store. The write store may only return the
+   * patched fields so the cached copy is refreshed from it.
+   */
+  @Override
+  public T update(T.Builder builder, FieldMask mask) throws CrudException {
+    String urn = String.valueOf(builder.getField(urnDescriptor));
+    awaitQueueSpace();
+    int[] held = lock(Collections.singleton(urn));
+    try {
+      return patch(urn, builder, mask);
+    } finally {
+      unlock(held);
+    }
+  }
+
+  private T patch(String urn, T.Builder builder, FieldMask mask)
+      throws CrudException {
+    if (null != writeBehind) {
+      // patch the cached copy and queue it as a whole message update
+      Message.Builder patched = getCached(urn, builder).toBuilder();
+      List<FieldDescriptor> fields = FieldMasks.getFields(
+          builder.getDescriptorForType(), mask);
+      fields.remove(urnDescriptor);
+      fields.remove(vectorField);
+      FieldMasks.merge(patched, builder, fields);
+      if (null != vectorField) {
+        patched.setField(vectorField, builder.getField(vectorField));
+      }
+      T result = write(urn, patched);
+      if (null != vectorField) {
+        builder.setField(vectorField, result.getField(vectorField));
+      }
+      return result;
+    }
+    T updated = writeStore.update(builder, mask);
+    Message.Builder key = updated.newBuilderForType()
+        .setField(urnDescriptor, urn);
+    T result = writeStore.readOne(key);
+    cache(result);
+    return result;
+  }
+
+  /**
+   * Update all through the write store, caching the rows that were updated
+   * even if others in the batch failed.
+   */
+  @Override
+  public List<T> updateAll(Collection<? extends T.Builder> builders)
+      throws CrudException {
+    if (null != writeBehind) {
+      BatchResults<T> results = new BatchResults<>();
+      for (Message.Builder builder : builders) {
+        try {
+          results.add(update(builder));
+        } catch (CrudException e) {
+          results.fail(e);
+        }
+      }
+      return results.get("Update");
+    }
+    Set<String> urns = new HashSet<>();
+    for (Message.Builder builder : builders) {
+      urns.add(String.valueOf(builder.getField(urnDescriptor)));
+    }
+    int[] held = lock(urns);
+    try {
+      List<T> results = writeStore.updateAll(builders);
+      cacheAll(results);
+      return results;
+    } catch (CrudBatchException e) {
+      cacheAll(e.getResults());
+      throw e;
+    } finally {
+      unlock(held);
+    }
+  }
+
+  private void cacheAll(List<? extends Message> results) {
+    for (Message result : results) {
+      if (null != result) {
+        @SuppressWarnings("unchecked")
+        T message = (T) result;
+        cache(message);
+      }
+    }
+  }
+
+  /**
+   * Delete through the write store, dropping the message from the cache only
+   * once the write store has deleted it.
+   */
   @Override
   public void delete(T message) throws CrudException {
     String urn = String.valueOf(message.getField(urnDescriptor));
-    urnMap.remove(urn);
-    writeStore.delete(message);
+    awaitQueueSpace();
+    int[] held = lock(Collections.singleton(urn));
+    try {
+      if (null != writeBehind) {
+        writeBehind.delete(urn, getCached(urn, message));
+      } else {
+        writeStore.delete(message);
+      }
+      uncache(urn);
+    } finally {
+      unlock(held);
+    }
+  }
+
+  /**
+   * Delete all through the write store then drop the deleted rows from the
+   * cache, keeping rows that failed to delete.
+   */
+  @Override
+  public void deleteAll(Collection<T> messages) throws CrudException {
+    if (null != writeBehind) {
+      BatchResults<T> results = new BatchResults<>();
+      for (T message : messages) {
+        try {
+          delete(message);
+          results.add(message);
+        } catch (CrudException e) {
+          results.fail(e);
+        }
+      }
+      results.get("Delete");
+      return;
+    }
+    Set<String> urns = new HashSet<>();
+    for (T message : messages) {
+      urns.add(String.valueOf(message.getField(urnDescriptor)));
+    }
+    int[] held = lock(urns);
+    try {
+      writeStore.deleteAll(messages);
+      for (String urn : urns) {
+        uncache(urn);
+      }
+    } catch (CrudBatchException e) {
+      for (Message deleted : e.getResults()) {
+        if (null != deleted) {
+          uncache(String.valueOf(deleted.getField(urnDescriptor)));
+        }
+      }
+      throw e;
+    } finally {
+      unlock(held);
+    }
+  }
+
+  /**
+   * Lock the stripes of the urns in stripe order so batches sharing stripes
+   * can't deadlock.
+   *
+   * @return the stripes held, to be passed to unlock
+   */
+  private int[] lock(Collection<String> urns) {
+    Set<Integer> ordered = new TreeSet<>();
+    for (String urn : urns) {
+      ordered.add(Math.floorMod(urn.hashCode(), stripes.length));
+    }
+    int[] held = new int[ordered.size()];
+    int i = 0;
+    for (int stripe : ordered) {
+      stripes[stripe].lock();
+      held[i++] = stripe;
+    }
+    return held;
+  }
+
+  private void unlock(int[] held) {
+    for (int i = held.length - 1; i >= 0; i--) {
+      stripes[held[i]].unlock();
+    }
+  }
+
+  /**
+   * Cache a message, moving it between index values if they changed.
+   */
+  private void cache(T message) {
+    String urn = String.valueOf(message.getField(urnDescriptor));
+    int[] held = lock(Collections.singleton(urn));
+    try {
+      index(urn, message);
+    } finally {
+      unlock(held);
+    }
+  }
+
+  private void index(String urn, T message) {
+    T prior = urnMap.put(urn, message);
+    for (Entry<FieldDescriptor, Map<Object, Map<String, T>>> index :
+        indexes.entrySet()) {
+      Object value = message.getField(index.getKey());
+      if (null != prior) {
+        Object priorValue = prior.getField(index.getKey());
+        if (!priorValue.equals(value)) {
+          unindex(index.getValue(), priorValue, urn);
+        }
+      }
+      index.getValue().compute(value, (key, matches) -> {
+        if (null == matches) {
+          matches = new ConcurrentHashMap<>();
+        }
+        matches.put(urn, message);
+        return matches;
+      });
+    }
+  }
+
+  private void uncache(String urn) {
+    int[] held = lock(Collections.singleton(urn));
+    try {
+      T prior = urnMap.remove(urn);
+      if (null == prior) {
+        return;
+      }
+      for (Entry<FieldDescriptor, Map<Object, Map<String, T>>> index :
+          indexes.entrySet()) {
+        unindex(index.getValue(), prior.getField(index.getKey()), urn);
+      }
+    } finally {
+      unlock(held);
+    }
+  }
+
+  private void unindex(Map<Object, Map<String, T>> values, Object value,
+      String urn) {
+    values.computeIfPresent(value, (key, matches) -> {
+      matches.remove(urn);
+      return matches.isEmpty() ? null : matches;
+    });
+  }
+
+  /**
+   * Get the cached message a write applies to, checking the write vector
+   * against it for a versioned store.
+   */
+  private T getCached(String urn, MessageOrBuilder write)
+      throws CrudException {
+    T current = urnMap.get(urn);
+    if (null == current) {
+      throw new MessageNotFoundException("Could not find urn: " + urn);
+    }
+    if (null != vectorField &&
+        !current.getField(vectorField).equals(write.getField(vectorField))) {
+      throw new MessageVectorException("Write vector is out of date for " +
+          "urn: " + urn);
+    }
+    return current;
+  }
+
+  /**
+   * Wait for queued writes to be written to the write store. Writes that
+   * failed since the last flush have already been reloaded into the cache
+   * from the write store and are reported.
+   *
+   * @throws CrudException if any queued write failed
+   */
+  public void flush() throws CrudException {
+    if (null == writeBehind) {
+      return;
+    }
+    checkWritten(writeBehind.flush());
+  }
+
+  /**
+   * Reload a message from the write store, dropping it from the cache if it
+   * is gone or can't be read. Must be called holding the urn lock.
+   */
+  private void reload(String urn) {
+    Message.Builder key = prototype.newBuilderForType()
+        .setField(urnDescriptor, urn);
+    try {
+      cache(writeStore.readOne(key));
+    } catch (CrudException | RuntimeException e) {
+      // not found or unknown, either way the cached copy can't be trusted
+      uncache(urn);
+    }
+  }
+
+  /**
+   * Brings the cache back in line with the write store when queued writes
+   * fail, called on the flush thread.
+   */
+  private class WriteBehindListener implements WriteBehindQueue.Listener {
+
+    @Override
+    public void failed(String urn) {
+      int[] held = lock(Collections.singleton(urn));
+      try {
+        writeBehind.abandon(urn);
+        reload(urn);
+      } finally {
+        unlock(held);
+      }
+    }
   }
 
+  private static void checkWritten(Map<String, CrudException> failures)
+      throws CrudException {
+    if (!failures.isEmpty()) {
+      throw new CrudException("Write behind failed for " + failures.size() +
+          " messages", failures.values().iterator().next());
+    }
+  }
+
+  /**
+   * Close the store, first writing any queued writes.
+   */
   @Override
   public void close() throws CrudException {
-    urnMap.clear();
-    urnMap = null;
-    writeStore.close();
+    try {
+      if (null != writeBehind) {
+        checkWritten(writeBehind.close());
+      }
+    } finally {
+      urnMap.clear();
+      urnMap = null;
+      indexes.clear();
+      writeStore.close();
+    }
   }
 }
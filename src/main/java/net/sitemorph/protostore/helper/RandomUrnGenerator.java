@@ -0,0 +1,16 @@
+package net.sitemorph.protostore.helper;
+
+import net.sitemorph.protostore.UrnGenerator;
+
+import java.util.UUID;
+
+/**
+ * Default urn generator allocating UUID class 4 random urns.
+ */
+public class RandomUrnGenerator implements UrnGenerator {
+
+  @Override
+  public String generate() {
+    return UUID.randomUUID().toString();
+  }
+}
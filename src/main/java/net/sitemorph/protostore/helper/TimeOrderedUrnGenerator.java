@@ -0,0 +1,46 @@
+package net.sitemorph.protostore.helper;
+
+import net.sitemorph.protostore.UrnGenerator;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time ordered urn generator using the UUID version 7 layout: a 48 bit unix
+ * millisecond timestamp, a 12 bit sequence and 62 random bits. Urns from one
+ * generator are strictly increasing, also as strings, so new rows are
+ * appended to the end of a primary key index rather than scattered through
+ * it, keeping inserts on a few hot pages.
+ *
+ * The timestamp and sequence are advanced together with a compare and set so
+ * the generator is lock free. If more than 4096 urns are generated in a
+ * millisecond the sequence carries into the timestamp, which runs slightly
+ * ahead of the clock until the clock catches up.
+ */
+public class TimeOrderedUrnGenerator implements UrnGenerator {
+
+  private static final int SEQUENCE_BITS = 12;
+  private static final long VERSION = 0x7000L;
+  private static final long VARIANT = 0x8000000000000000L;
+  private static final long RANDOM_MASK = 0x3FFFFFFFFFFFFFFFL;
+
+  // timestamp followed by the sequence of the last urn generated
+  private final AtomicLong last = new AtomicLong();
+
+  @Override
+  public String generate() {
+    long now = System.currentTimeMillis() << SEQUENCE_BITS;
+    long prior;
+    long next;
+    do {
+      prior = last.get();
+      next = Math.max(now, prior + 1);
+    } while (!last.compareAndSet(prior, next));
+    long mostSignificant = ((next >>> SEQUENCE_BITS) << 16) | VERSION |
+        (next & ((1L << SEQUENCE_BITS) - 1));
+    long leastSignificant = VARIANT |
+        (ThreadLocalRandom.current().nextLong() & RANDOM_MASK);
+    return new UUID(mostSignificant, leastSignificant).toString();
+  }
+}
@@ -0,0 +1,486 @@
+package net.sitemorph.protostore.helper;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import net.sitemorph.protostore.CrudBatchException;
+import net.sitemorph.protostore.CrudException;
+import net.sitemorph.protostore.CrudStore;
+import net.sitemorph.protostore.ram.InMemoryStore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of cached writes waiting to be written to a store by a background
+ * thread for the write behind mode of the preload store.
+ *
+ * Writes are held per urn so repeated writes of a message coalesce, last
+ * write wins, into one update or delete of the stored version. For a
+ * versioned store the cached vector moves on with every write so copies from
+ * before a write are rejected, while the store is sent the vector of the
+ * version the coalesced write applies to. The store moves its vector on
+ * once per coalesced write so it may land behind the cached vector, which
+ * never moves back. The queue keeps the stored vector of such a message and
+ * tests its next write against it. A failed write is reported to the cache
+ * as soon as it fails, along with any later write of the urn queued on top
+ * of it.
+ *
+ * The queue is bounded by the number of urns pending. Writers wait for space
+ * with awaitSpace before taking their urn lock, so the flush thread can take
+ * urn locks to report failed writes without waiting on a blocked writer, and
+ * the bound may be passed by up to one write per concurrent writer.
+ */
+class WriteBehindQueue<T extends Message> {
+
+  /**
+   * Hears of failed writes on the flush thread.
+   */
+  interface Listener {
+
+    /**
+     * A write of the urn failed so the cached message is not what the store
+     * holds.
+     */
+    void failed(String urn);
+  }
+
+  private final CrudStore<T> writeStore;
+  private final FieldDescriptor vectorField;
+  private final Listener listener;
+  private final int maxPending;
+  private final long delayNanos;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition notFull = lock.newCondition();
+  private final Condition drained = lock.newCondition();
+  private final Thread flusher;
+  private Map<String, PendingWrite<T>> pending = new LinkedHashMap<>();
+  private Map<String, PendingWrite<T>> writing = Collections.emptyMap();
+  // urns of the batch being written whose outcome isn't yet reported
+  private final Set<String> inFlight = new HashSet<>();
+  // stored vectors of messages whose cached vector is ahead of the store
+  private final Map<String, Long> storedVectors = new HashMap<>();
+  private final Map<String, CrudException> failures = new HashMap<>();
+  private int flushRequests = 0;
+  private boolean flushing = false;
+  private boolean closed = false;
+
+  WriteBehindQueue(CrudStore<T> writeStore, FieldDescriptor vectorField,
+      Listener listener, int maxPending, long flushDelayMillis) {
+    this.writeStore = writeStore;
+    this.vectorField = vectorField;
+    this.listener = listener;
+    this.maxPending = maxPending;
+    this.delayNanos = TimeUnit.MILLISECONDS.toNanos(flushDelayMillis);
+    flusher = new Thread(this::run, "protostore-write-behind");
+    flusher.setDaemon(true);
+  }
+
+  /**
+   * Start the flush thread once the listener is ready to hear from it.
+   */
+  void start() {
+    flusher.start();
+  }
+
+  /**
+   * Wait until the queue has space for another urn. Must be called without
+   * holding an urn lock.
+   *
+   * @throws CrudException if the queue is closed or interrupted waiting
+   */
+  void awaitSpace() throws CrudException {
+    lock.lock();
+    try {
+      while (!closed && pending.size() >= maxPending) {
+        // back pressure: have the flush thread start now
+        notEmpty.signal();
+        notFull.await();
+      }
+      checkOpen();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CrudException("Interrupted waiting to queue write", e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Queue an update of the cached message, returning the message to cache
+   * with its vector moved on. Must be called holding the urn lock.
+   */
+  T update(String urn, T current, Message.Builder builder)
+      throws CrudException {
+    lock.lock();
+    try {
+      PendingWrite<T> write = reserve(urn, current);
+      if (null != vectorField) {
+        InMemoryStore.updateVector(builder, vectorField);
+      }
+      @SuppressWarnings("unchecked")
+      T latest = (T) builder.build();
+      write.latest = latest;
+      write.deleted = false;
+      return write.latest;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Queue a delete of the cached message. Must be called holding the urn
+   * lock.
+   */
+  void delete(String urn, T current) throws CrudException {
+    lock.lock();
+    try {
+      PendingWrite<T> write = reserve(urn, current);
+      write.latest = null;
+      write.deleted = true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Report that a flushed write of the urn failed. A write of the urn queued
+   * while it was in flight was made on top of the failed one so it is
+   * dropped and reported with the same cause.
+   */
+  void abandon(String urn) {
+    lock.lock();
+    try {
+      inFlight.remove(urn);
+      storedVectors.remove(urn);
+      if (null != pending.remove(urn)) {
+        failures.put(urn, new CrudException("Write behind of urn " + urn +
+            " followed a failed write"));
+        notFull.signalAll();
+        drained.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Wait until every queued write has been written and reported.
+   *
+   * @return the urns of writes which failed since the last flush with their
+   *     causes
+   * @throws CrudException if interrupted while waiting
+   */
+  Map<String, CrudException> flush() throws CrudException {
+    lock.lock();
+    try {
+      flushRequests++;
+      try {
+        notEmpty.signal();
+        while (!pending.isEmpty() || flushing) {
+          drained.await();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CrudException("Interrupted waiting for writes to flush", e);
+      } finally {
+        flushRequests--;
+      }
+      return takeFailures();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stop taking writes, write all that are queued and stop the flush thread.
+   *
+   * @return the urns of writes which failed since the last flush with their
+   *     causes
+   * @throws CrudException if interrupted while waiting
+   */
+  Map<String, CrudException> close() throws CrudException {
+    lock.lock();
+    try {
+      closed = true;
+      notEmpty.signal();
+      notFull.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CrudException("Interrupted waiting for writes to flush", e);
+    }
+    lock.lock();
+    try {
+      return takeFailures();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the pending write for a urn, adding one if needed. A new write
+   * applies to the stored version of the current cached message unless an
+   * earlier write of the urn is in flight, in which case it applies to the
+   * version that write leaves and landed fills it in. Must be called holding
+   * the lock.
+   */
+  private PendingWrite<T> reserve(String urn, T current)
+      throws CrudException {
+    checkOpen();
+    PendingWrite<T> write = pending.get(urn);
+    if (null == write) {
+      write = new PendingWrite<>(inFlight.contains(urn) ? null :
+          getStored(urn, current));
+      if (pending.isEmpty()) {
+        notEmpty.signal();
+      }
+      pending.put(urn, write);
+    }
+    return write;
+  }
+
+  /**
+   * Get the version of a cached message the store holds, which has a lower
+   * vector if earlier writes of it were coalesced.
+   */
+  private T getStored(String urn, T current) {
+    Long vector = storedVectors.get(urn);
+    if (null == vector) {
+      return current;
+    }
+    @SuppressWarnings("unchecked")
+    T stored = (T) current.toBuilder().setField(vectorField, vector).build();
+    return stored;
+  }
+
+  /**
+   * Record that a flushed write of the urn landed. A write of the urn queued
+   * while it was in flight now applies to the stored version. Otherwise the
+   * cache holds the landed write so its stored vector is kept if behind.
+   * Must be called holding the lock.
+   */
+  private void landed(String urn, T stored) {
+    inFlight.remove(urn);
+    storedVectors.remove(urn);
+    PendingWrite<T> next = pending.get(urn);
+    if (null != next) {
+      next.base = stored;
+    } else if (null != stored && null != vectorField) {
+      Object cached = writing.get(urn).latest.getField(vectorField);
+      if (!cached.equals(stored.getField(vectorField))) {
+        storedVectors.put(urn, (Long) stored.getField(vectorField));
+      }
+    }
+  }
+
+  private void checkOpen() throws CrudException {
+    if (closed) {
+      throw new CrudException("Can't queue write as the store is closed");
+    }
+  }
+
+  private Map<String, CrudException> takeFailures() {
+    Map<String, CrudException> result = new LinkedHashMap<>(failures);
+    failures.clear();
+    return result;
+  }
+
+  private void run() {
+    lock.lock();
+    try {
+      while (true) {
+        while (pending.isEmpty() && !closed) {
+          notEmpty.await();
+        }
+        if (pending.isEmpty()) {
+          // closed and drained
+          drained.signalAll();
+          return;
+        }
+        // give further writes to the same urns a moment to coalesce
+        long wait = delayNanos;
+        while (0 < wait && !closed && 0 == flushRequests &&
+            pending.size() < maxPending) {
+          wait = notEmpty.awaitNanos(wait);
+        }
+        Map<String, PendingWrite<T>> batch = pending;
+        pending = new LinkedHashMap<>();
+        writing = batch;
+        inFlight.addAll(batch.keySet());
+        flushing = true;
+        notFull.signalAll();
+        Map<String, T> written = new LinkedHashMap<>();
+        Map<String, CrudException> failed = new LinkedHashMap<>();
+        lock.unlock();
+        try {
+          write(batch, written, failed);
+        } finally {
+          lock.lock();
+        }
+        for (Map.Entry<String, T> entry : written.entrySet()) {
+          landed(entry.getKey(), entry.getValue());
+        }
+        writing = Collections.emptyMap();
+        lock.unlock();
+        try {
+          // report without the lock as the listener takes urn locks
+          for (String urn : failed.keySet()) {
+            listener.failed(urn);
+          }
+        } finally {
+          lock.lock();
+          flushing = false;
+        }
+        failures.putAll(failed);
+        drained.signalAll();
+      }
+    } catch (InterruptedException e) {
+      // the daemon thread was interrupted so queued writes can't be written
+      Thread.currentThread().interrupt();
+      abandonPending(new CrudException("Write behind thread interrupted " +
+          "before writing", e));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Record every queued write as failed and stop taking writes, reporting
+   * the urns to the listener. Must be called holding the lock.
+   */
+  private void abandonPending(CrudException cause) {
+    closed = true;
+    Set<String> urns = new HashSet<>(pending.keySet());
+    for (String urn : urns) {
+      failures.put(urn, cause);
+    }
+    pending.clear();
+    notFull.signalAll();
+    drained.signalAll();
+    lock.unlock();
+    try {
+      for (String urn : urns) {
+        listener.failed(urn);
+      }
+    } finally {
+      lock.lock();
+    }
+  }
+
+  /**
+   * Write a batch of coalesced writes to the store, updates then deletes,
+   * collecting the stored result of each urn written and the cause of each
+   * which failed.
+   */
+  private void write(Map<String, PendingWrite<T>> batch,
+      Map<String, T> written, Map<String, CrudException> failed) {
+    List<String> updateUrns = new ArrayList<>();
+    List<Message.Builder> updates = new ArrayList<>();
+    List<String> deleteUrns = new ArrayList<>();
+    List<T> deletes = new ArrayList<>();
+    for (Map.Entry<String, PendingWrite<T>> entry : batch.entrySet()) {
+      PendingWrite<T> write = entry.getValue();
+      if (null == write.base) {
+        // queued on top of a write which failed before it was reported
+        failed.put(entry.getKey(), new CrudException("Write behind of urn " +
+            entry.getKey() + " followed a failed write"));
+      } else if (write.deleted) {
+        deleteUrns.add(entry.getKey());
+        deletes.add(write.base);
+      } else {
+        Message.Builder update = write.latest.toBuilder();
+        if (null != vectorField) {
+          // test and set against the stored version
+          update.setField(vectorField, write.base.getField(vectorField));
+        }
+        updateUrns.add(entry.getKey());
+        updates.add(update);
+      }
+    }
+    if (!updates.isEmpty()) {
+      List<? extends Message> results;
+      try {
+        results = writeStore.updateAll(updates);
+      } catch (CrudBatchException e) {
+        recordFailures(failed, updateUrns, e);
+        results = e.getResults();
+      } catch (CrudException e) {
+        recordFailures(failed, updateUrns, e);
+        results = null;
+      } catch (RuntimeException e) {
+        recordFailures(failed, updateUrns,
+            new CrudException("Error writing behind updates", e));
+        results = null;
+      }
+      for (int i = 0; null != results && i < results.size(); i++) {
+        if (null != results.get(i)) {
+          @SuppressWarnings("unchecked")
+          T stored = (T) results.get(i);
+          written.put(updateUrns.get(i), stored);
+        }
+      }
+    }
+    if (!deletes.isEmpty()) {
+      Set<String> failedDeletes = new HashSet<>();
+      try {
+        writeStore.deleteAll(deletes);
+      } catch (CrudException e) {
+        recordFailures(failed, deleteUrns, e);
+        failedDeletes.addAll(failed.keySet());
+      } catch (RuntimeException e) {
+        recordFailures(failed, deleteUrns,
+            new CrudException("Error writing behind deletes", e));
+        failedDeletes.addAll(deleteUrns);
+      }
+      for (String urn : deleteUrns) {
+        if (!failedDeletes.contains(urn)) {
+          written.put(urn, null);
+        }
+      }
+    }
+  }
+
+  private static void recordFailures(Map<String, CrudException> failed,
+      List<String> urns, CrudException e) {
+    if (e instanceof CrudBatchException) {
+      for (Map.Entry<Integer, CrudException> row :
+          ((CrudBatchException) e).getFailures().entrySet()) {
+        failed.put(urns.get(row.getKey()), row.getValue());
+      }
+    } else {
+      for (String urn : urns) {
+        failed.put(urn, e);
+      }
+    }
+  }
+
+  /**
+   * Write waiting for a urn: the stored version it applies to, null while an
+   * earlier write of the urn is in flight, and the latest cached message or
+   * a delete.
+   */
+  private static class PendingWrite<T extends Message> {
+
+    private T base;
+    private T latest;
+    private boolean deleted;
+
+    PendingWrite(T base) {
+      this.base = base;
+    }
+  }
+}
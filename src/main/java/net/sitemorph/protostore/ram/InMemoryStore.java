@@ -3,25 +3,31 @@ package net.sitemorph.protostore.ram;
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor.Type;
+import com.google.protobuf.FieldMask;
 import com.google.protobuf.Message;
 import net.sitemorph.protostore.CrudException;
 import net.sitemorph.protostore.CrudIterator;
+import net.sitemorph.protostore.CrudPage;
 import net.sitemorph.protostore.CrudStore;
 import net.sitemorph.protostore.MessageNotFoundException;
 import net.sitemorph.protostore.MessageVectorException;
+import net.sitemorph.protostore.RangeQuery;
 import net.sitemorph.protostore.SortOrder;
+import net.sitemorph.protostore.UrnGenerator;
+import net.sitemorph.protostore.helper.BatchResults;
 import net.sitemorph.protostore.helper.CollectionIterator;
-import net.sitemorph.protostore.helper.FilteringDataIterator;
-import net.sitemorph.protostore.helper.IteratorAdaptor;
+import net.sitemorph.protostore.helper.FieldMasks;
+import net.sitemorph.protostore.helper.PageTokens;
+import net.sitemorph.protostore.helper.RandomUrnGenerator;
 
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Spliterator;
-import java.util.Spliterators;
-import java.util.UUID;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -29,18 +35,32 @@ import java.util.stream.StreamSupport;
 /**
  * In memory reference implementation of the Protostore CRUD interface with
  * support for:
- * * UUID class 4 random unique resource identifier allocation on create
+ * * Pluggable unique resource identifier allocation on create, UUID class 4
+ *   random by default
  * * Multiple index field iteration
  * * Sort order traversal
  * * Vector clock check then set locking semantics for message updates
  *
  * The in memory (RAM) store uses a sorted storage list to achieve balanced
- * performance with operations currently around:
+ * performance along with a urn hash index so that primary key operations don't
+ * need to scan the data. Each index field keeps a map from field value to the
+ * sort ordered list of messages with that value. Operations are currently
+ * around:
  *
- * Create: T(N + log(N))
- * Read: T(N)
- * Update: T(N/2)
- * Delete T(N/2)
+ * Create: T(N/B + B) for chunk size B
+ * Read: T(1) by urn or index value, then iteration of the results
+ * Range or page read: T(log(N)) to find the start, then iteration
+ * Update: T(N/B + B), replacing in place when the sort value is unchanged
+ * Delete: T(N/B + B)
+ *
+ * The sorted lists are immutable snapshots kept in a total order of sort field
+ * then urn. Writers publish a new version on each change while readers
+ * iterate the version they started with, so reads never copy the data.
+ *
+ * Reads don't lock: the urn and index maps are concurrent and the snapshots
+ * immutable, so any number of threads can read while a write is in progress.
+ * Writes are serialised on the store as each publishes new versions of the
+ * shared sorted data.
  *
  * @author hello@damienallison.com
  */
@@ -49,10 +69,15 @@ public class InMemoryStore<T extends Message> implements CrudStore<T> {
   private static final long INITIAL_VECTOR = 0;
   private FieldDescriptor urnField;
   private final List<FieldDescriptor> indexes = new ArrayList<>();
-  private final List<T> data = new ArrayList<>();
+  private final Map<FieldDescriptor, Map<Object, SortedSnapshot<T>>>
+      indexData = new HashMap<>();
+  private volatile SortedSnapshot<T> data;
+  private final Map<Object, T> urns = new ConcurrentHashMap<>();
   private FieldDescriptor sortField = null;
   private SortOrder direction = SortOrder.ASCENDING;
   private FieldDescriptor vectorField = null;
+  private InMemoryComparator<T> comparator;
+  private UrnGenerator urnGenerator = new RandomUrnGenerator();
 
   private InMemoryStore() {}
 
@@ -60,54 +85,195 @@ public class InMemoryStore<T extends Message> implements CrudStore<T> {
   public synchronized T create(T.Builder builder) throws CrudException {
 
     // find a urn for the new object
-    UUID urn = UUID.randomUUID();
-
-    CrudIterator<T> priors = new FilteringDataIterator<>(data, urnField,
-        urn);
-    while (priors.hasNext()) {
-      urn = UUID.randomUUID();
-      priors = new FilteringDataIterator<>(data, urnField, urn);
+    String urn = urnGenerator.generate();
+    while (urns.containsKey(urn)) {
+      urn = urnGenerator.generate();
     }
-    builder.setField(urnField, urn.toString());
+    builder.setField(urnField, urn);
     if (null != vectorField) {
       setInitialVector(builder, vectorField);
     }
     @SuppressWarnings("unchecked")
     T newValue = (T) builder.build();
-    int insertAt;
-    if (null != sortField) {
-      insertAt = Collections.binarySearch(data, newValue, new InMemoryComparator<>(sortField, direction));
+    data = data.with(newValue);
+    urns.put(newValue.getField(urnField), newValue);
+    addToIndexes(newValue);
+    return newValue;
+  }
+
+  @Override
+  public CrudIterator<T> read(Message.Builder builder) {
+    return new CollectionIterator<>(select(builder));
+  }
 
-      if (0 > insertAt) {
-        // if not exactly found then will be inserted.
-        insertAt = -(insertAt) - 1;
+  /**
+   * Read as for read(builder), copying the masked fields of each message.
+   */
+  @Override
+  public CrudIterator<T> read(Message.Builder builder, FieldMask mask)
+      throws CrudException {
+    return FieldMasks.project(read(builder),
+        FieldMasks.getFields(builder.getDescriptorForType(), mask));
+  }
+
+  /**
+   * Read a range of sort field values by binary searching the sorted snapshot
+   * for the range end points, so only the messages returned are visited.
+   */
+  @Override
+  public CrudIterator<T> read(Message.Builder builder, RangeQuery range) {
+    SortedSnapshot<T> source = select(builder);
+    int from = 0;
+    int to = source.size();
+    Object low = range.getLowerBound();
+    Object high = range.getUpperBound();
+    if (SortOrder.ASCENDING == direction) {
+      if (range.hasLowerBound()) {
+        from = source.partition(message -> 0 > compareToBound(message, low));
+      }
+      if (range.hasUpperBound()) {
+        to = source.partition(message -> 0 >= compareToBound(message, high));
       }
-      // otherwise will be inserted at the position of the first matching
-      // value according to the insert order.
     } else {
-      insertAt = data.size();
+      if (range.hasUpperBound()) {
+        from = source.partition(message -> 0 < compareToBound(message, high));
+      }
+      if (range.hasLowerBound()) {
+        to = source.partition(message -> 0 <= compareToBound(message, low));
+      }
     }
-    // TODO 20131111 Consider a scan to remove stale objects based on urn
-    data.add(insertAt, newValue);
-    return newValue;
+    boolean reversed = null != range.getDirection() &&
+        direction != range.getDirection();
+    if (range.hasLimit() && to - from > range.getLimit()) {
+      if (reversed) {
+        from = to - range.getLimit();
+      } else {
+        to = from + range.getLimit();
+      }
+    }
+    return new CollectionIterator<>(source.iterator(from, to, reversed));
+  }
+
+  /**
+   * Read a page by binary searching the sorted snapshot for the sort field and
+   * urn of the last message of the previous page.
+   */
+  @Override
+  public CrudPage<T> readPage(Message.Builder builder, String pageToken,
+      int pageSize) throws CrudException {
+    if (0 >= pageSize) {
+      throw new IllegalArgumentException("Page size must be positive");
+    }
+    SortedSnapshot<T> source = select(builder);
+    int from = 0;
+    if (null != pageToken) {
+      @SuppressWarnings("unchecked")
+      T after = (T) PageTokens.decode(builder, pageToken);
+      from = source.partition(message ->
+          0 >= comparator.compare(message, after));
+    }
+    int to = (int) Math.min(source.size(), (long) from + pageSize + 1);
+    return PageTokens.readPage(
+        new CollectionIterator<>(source.iterator(from, to, false)), pageSize,
+        sortField, urnField);
+  }
+
+  @Override
+  public long count(Message.Builder builder) {
+    return select(builder).size();
+  }
+
+  /**
+   * Count by index value from the index maps. Only a selection by urn or by
+   * a different index field has to visit the selected messages.
+   */
+  @Override
+  public Map<Object, Long> countBy(Message.Builder builder, String indexField)
+      throws CrudException {
+    FieldDescriptor group = null;
+    for (FieldDescriptor field : indexes) {
+      if (field.getName().equals(indexField)) {
+        group = field;
+        break;
+      }
+    }
+    if (null == group) {
+      throw new CrudException("Can't count by unindexed field: " + indexField);
+    }
+    Map<Object, Long> counts = new HashMap<>();
+    if (!builder.hasField(urnField)) {
+      // the same index selection as select
+      FieldDescriptor selector = null;
+      for (FieldDescriptor field : indexes) {
+        if (builder.hasField(field)) {
+          selector = field;
+          break;
+        }
+      }
+      if (null == selector) {
+        for (Map.Entry<Object, SortedSnapshot<T>> entry :
+            indexData.get(group).entrySet()) {
+          counts.put(entry.getKey(), (long) entry.getValue().size());
+        }
+        return counts;
+      }
+      if (selector.equals(group)) {
+        Object value = builder.getField(group);
+        SortedSnapshot<T> matches = indexData.get(group).get(value);
+        if (null != matches && !matches.isEmpty()) {
+          counts.put(value, (long) matches.size());
+        }
+        return counts;
+      }
+    }
+    for (T message : select(builder)) {
+      counts.merge(message.getField(group), 1L, Long::sum);
+    }
+    return counts;
+  }
+
+  @Override
+  public Object min(Message.Builder builder) {
+    SortedSnapshot<T> source = select(builder);
+    if (source.isEmpty()) {
+      return null;
+    }
+    return source.get(SortOrder.ASCENDING == direction ? 0 :
+        source.size() - 1).getField(sortField);
   }
 
   @Override
-  public synchronized  CrudIterator<T> read(Message.Builder builder) {
+  public Object max(Message.Builder builder) {
+    SortedSnapshot<T> source = select(builder);
+    if (source.isEmpty()) {
+      return null;
+    }
+    return source.get(SortOrder.ASCENDING == direction ?
+        source.size() - 1 : 0).getField(sortField);
+  }
+
+  private SortedSnapshot<T> select(Message.Builder builder) {
     if (builder.hasField(urnField)) {
-      // read based on the urn field
-      return new FilteringDataIterator<>(new ArrayList<>(data), urnField,
-          builder.getField(urnField));
+      // read based on the urn index
+      T match = urns.get(builder.getField(urnField));
+      SortedSnapshot<T> result = SortedSnapshot.empty(comparator);
+      return null == match ? result : result.with(match);
     }
     // iterate over the index fields
     for (FieldDescriptor field : indexes) {
       if (builder.hasField(field)) {
-        return new FilteringDataIterator<>(new ArrayList<>(data), field,
-            builder.getField(field));
+        SortedSnapshot<T> matches = indexData.get(field)
+            .get(builder.getField(field));
+        return null == matches ? SortedSnapshot.empty(comparator) : matches;
       }
     }
-    // read all data
-    return new CollectionIterator<>(new ArrayList<>(data));
+    // read all data from the current snapshot
+    return data;
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private int compareToBound(T message, Object bound) {
+    return ((Comparable) message.getField(sortField)).compareTo(bound);
   }
 
   @Override
@@ -129,48 +295,178 @@ public class InMemoryStore<T extends Message> implements CrudStore<T> {
           "a value for the urn field");
     }
     Object updateUrn = builder.getField(urnField);
-    for (int i = 0; i < data.size(); i++) {
-      T old = data.get(i);
-      // if this is our message to update
-      if (old.getField(urnField).equals(updateUrn)) {
-        if (null != vectorField) {
-          if (!builder.hasField(vectorField)) {
-            throw new MessageVectorException("Update is missing clock vector");
-          }
-          if (!builder.getField(vectorField).equals(old.getField(vectorField))) {
-            throw new MessageVectorException("Update vector is out of date");
-          }
-          updateVector(builder, vectorField);
-        }
-        //noinspection unchecked
-        T result = (T) builder.build();
-        data.set(i, result);
-        // sort the data in case the update order changed
-        data.sort(new InMemoryComparator<>(sortField, direction));
-        return result;
+    T old = urns.get(updateUrn);
+    if (null == old) {
+      throw new MessageNotFoundException("Update passed message that was " +
+          "not stored. Update not possible");
+    }
+    if (null != vectorField) {
+      if (!builder.hasField(vectorField)) {
+        throw new MessageVectorException("Update is missing clock vector");
+      }
+      if (!builder.getField(vectorField).equals(old.getField(vectorField))) {
+        throw new MessageVectorException("Update vector is out of date");
+      }
+      updateVector(builder, vectorField);
+    }
+    //noinspection unchecked
+    T result = (T) builder.build();
+    // only moves the message when the update changed its sort position
+    data = data.replacing(old, result);
+    urns.put(updateUrn, result);
+    updateIndexes(old, result);
+    return result;
+  }
+
+  /**
+   * Patch the stored message with the masked fields of the builder and apply
+   * it as an update.
+   */
+  @Override
+  public synchronized T update(Message.Builder builder, FieldMask mask)
+      throws CrudException {
+    if (!builder.hasField(urnField)) {
+      throw new IllegalArgumentException("Update provided does not include " +
+          "a value for the urn field");
+    }
+    List<FieldDescriptor> fields = FieldMasks.getFields(
+        builder.getDescriptorForType(), mask);
+    T old = urns.get(builder.getField(urnField));
+    if (null == old) {
+      throw new MessageNotFoundException("Update passed message that was " +
+          "not stored. Update not possible");
+    }
+    Message.Builder patched = old.toBuilder();
+    fields.remove(urnField);
+    FieldMasks.merge(patched, builder, fields);
+    if (null != vectorField) {
+      if (!builder.hasField(vectorField)) {
+        throw new MessageVectorException("Update is missing clock vector");
       }
+      patched.setField(vectorField, builder.getField(vectorField));
+    }
+    T result = update(patched);
+    if (null != vectorField) {
+      builder.setField(vectorField, result.getField(vectorField));
     }
-    throw new MessageNotFoundException("Update passed message that was not " +
-        "stored. Update not possible");
+    return result;
   }
 
   @Override
   public synchronized void delete(T message) throws CrudException {
-    // TODO 20131111 Implement based on urn column
-    for (int i = 0; i < data.size(); i++) {
-      T old = data.get(i);
-      if (old.getField(urnField).equals(message.getField(urnField))) {
-        if (null != vectorField) {
-          if (!message.getField(vectorField).equals(old.getField(vectorField))) {
-            throw new MessageVectorException("Update failed due to vector " +
-                "mismatch");
-          }
-        }
-        data.remove(i);
-        return;
+    T old = urns.get(message.getField(urnField));
+    if (null == old) {
+      throw new MessageNotFoundException("Failed to delete missing message");
+    }
+    if (null != vectorField) {
+      if (!message.getField(vectorField).equals(old.getField(vectorField))) {
+        throw new MessageVectorException("Update failed due to vector " +
+            "mismatch");
+      }
+    }
+    data = data.without(old);
+    urns.remove(old.getField(urnField));
+    removeFromIndexes(old);
+  }
+
+  /**
+   * Create all messages holding the store lock once for the batch.
+   */
+  @Override
+  public synchronized List<T> createAll(
+      Collection<? extends Message.Builder> builders) throws CrudException {
+    BatchResults<T> results = new BatchResults<>();
+    for (Message.Builder builder : builders) {
+      try {
+        results.add(create(builder));
+      } catch (CrudException e) {
+        results.fail(e);
+      }
+    }
+    return results.get("Create");
+  }
+
+  /**
+   * Update all messages holding the store lock once for the batch.
+   */
+  @Override
+  public synchronized List<T> updateAll(
+      Collection<? extends Message.Builder> builders) throws CrudException {
+    BatchResults<T> results = new BatchResults<>();
+    for (Message.Builder builder : builders) {
+      try {
+        results.add(update(builder));
+      } catch (CrudException e) {
+        results.fail(e);
+      }
+    }
+    return results.get("Update");
+  }
+
+  /**
+   * Delete all messages holding the store lock once for the batch.
+   */
+  @Override
+  public synchronized void deleteAll(Collection<T> messages)
+      throws CrudException {
+    BatchResults<T> results = new BatchResults<>();
+    for (T message : messages) {
+      try {
+        delete(message);
+        results.add(message);
+      } catch (CrudException e) {
+        results.fail(e);
       }
     }
-    throw new MessageNotFoundException("Failed to delete missing message");
+    results.get("Delete");
+  }
+
+  private void addToIndexes(T message) {
+    for (FieldDescriptor field : indexes) {
+      addToIndex(field, message);
+    }
+  }
+
+  private void addToIndex(FieldDescriptor field, T message) {
+    Map<Object, SortedSnapshot<T>> values = indexData.get(field);
+    Object value = message.getField(field);
+    SortedSnapshot<T> matches = values.get(value);
+    if (null == matches) {
+      matches = SortedSnapshot.empty(comparator);
+    }
+    values.put(value, matches.with(message));
+  }
+
+  private void updateIndexes(T old, T updated) {
+    for (FieldDescriptor field : indexes) {
+      Object oldValue = old.getField(field);
+      Object value = updated.getField(field);
+      if (oldValue.equals(value)) {
+        // publish the replacement in one step so readers never miss it
+        Map<Object, SortedSnapshot<T>> values = indexData.get(field);
+        values.put(value, values.get(value).replacing(old, updated));
+      } else {
+        removeFromIndex(field, old);
+        addToIndex(field, updated);
+      }
+    }
+  }
+
+  private void removeFromIndexes(T message) {
+    for (FieldDescriptor field : indexes) {
+      removeFromIndex(field, message);
+    }
+  }
+
+  private void removeFromIndex(FieldDescriptor field, T message) {
+    Map<Object, SortedSnapshot<T>> values = indexData.get(field);
+    Object value = message.getField(field);
+    SortedSnapshot<T> matches = values.get(value).without(message);
+    if (matches.isEmpty()) {
+      values.remove(value);
+    } else {
+      values.put(value, matches);
+    }
   }
 
   @Override
@@ -200,15 +496,14 @@ public class InMemoryStore<T extends Message> implements CrudStore<T> {
     builder.setField(vectorField, INITIAL_VECTOR);
   }
 
+  /**
+   * Stream the matching messages in store order. The stream is sequential
+   * but splits evenly by position over the snapshot read, so calling
+   * parallel() scales aggregations across cores.
+   */
   @Override
   public Stream<T> stream(T.Builder builder) {
-    IteratorAdaptor<T> adapter = new IteratorAdaptor<>(this.read(builder));
-    int characteristics = Spliterator.CONCURRENT | Spliterator.NONNULL;
-    if (null != sortField) {
-      characteristics |= Spliterator.ORDERED;
-    }
-    Spliterator<T> spliterator = Spliterators.spliteratorUnknownSize(adapter, characteristics);
-    return StreamSupport.stream(spliterator, false);
+    return StreamSupport.stream(select(builder).spliterator(), false);
   }
 
   @Override
@@ -236,6 +531,14 @@ public class InMemoryStore<T extends Message> implements CrudStore<T> {
       return this;
     }
 
+    /**
+     * Set the urn allocation strategy. Defaults to random UUID urns.
+     */
+    public Builder<M> setUrnGenerator(UrnGenerator urnGenerator) {
+      result.urnGenerator = urnGenerator;
+      return this;
+    }
+
     /**
      * Set the urn field for the store based on the name of the field.
      * @param fieldName to find.
@@ -268,6 +571,7 @@ public class InMemoryStore<T extends Message> implements CrudStore<T> {
       for (FieldDescriptor field : descriptor.getFields()) {
         if (field.getName().equals(fieldName)) {
           result.indexes.add(field);
+          result.indexData.put(field, new ConcurrentHashMap<>());
           return this;
         }
       }
@@ -325,6 +629,9 @@ public class InMemoryStore<T extends Message> implements CrudStore<T> {
       if (null == result.sortField) {
         result.sortField = result.urnField;
       }
+      result.comparator = new InMemoryComparator<>(result.sortField,
+          result.direction, result.urnField);
+      result.data = SortedSnapshot.empty(result.comparator);
       return result;
     }
   }
@@ -333,10 +640,13 @@ public class InMemoryStore<T extends Message> implements CrudStore<T> {
 
     private final FieldDescriptor sortField;
     private final SortOrder direction;
+    private final FieldDescriptor urnField;
 
-    InMemoryComparator(FieldDescriptor sortField, SortOrder direction) {
+    InMemoryComparator(FieldDescriptor sortField, SortOrder direction,
+        FieldDescriptor urnField) {
       this.sortField = sortField;
       this.direction = direction;
+      this.urnField = urnField;
     }
 
       @Override
@@ -353,13 +663,24 @@ public class InMemoryStore<T extends Message> implements CrudStore<T> {
               "comparable. please check your configuration for sort field " +
               sortField.getName());
         }
+        int order;
         if (SortOrder.ASCENDING == direction) {
           //noinspection rawtypes,
-          return ((Comparable) leftValue).compareTo(rightValue);
+          order = ((Comparable) leftValue).compareTo(rightValue);
         } else {
           //noinspection rawtypes
-          return ((Comparable) rightValue).compareTo(leftValue);
+          order = ((Comparable) rightValue).compareTo(leftValue);
         }
+        if (0 != order || sortField.equals(urnField)) {
+          return order;
+        }
+        // break sort value ties on the urn so every message has one position
+        return compareUrns(left.getField(urnField), right.getField(urnField));
+      }
+
+      @SuppressWarnings({"unchecked", "rawtypes"})
+      private int compareUrns(Object left, Object right) {
+        return ((Comparable) left).compareTo(right);
       }
   }
 }
@@ -0,0 +1,373 @@
+package net.sitemorph.protostore.ram;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Immutable sorted list version used by the in memory store so that readers
+ * can hold and iterate a version of the data without locking or copying.
+ *
+ * Elements are held in chunks of bounded size. A write copies the chunk
+ * reference table and only the chunk that changed, returning a new version
+ * and leaving this one untouched. For N elements and chunk size B writes cost
+ * around T(N/B + B) and positional reads T(log(N/B)).
+ *
+ * The comparator must be a total order over the stored elements as it is used
+ * to locate elements for removal and replacement.
+ */
+final class SortedSnapshot<T> extends AbstractList<T> {
+
+  private static final int MAX_CHUNK = 512;
+  private static final int MIN_CHUNK = MAX_CHUNK / 4;
+  private static final Object[][] NO_CHUNKS = new Object[0][];
+
+  private final Comparator<? super T> comparator;
+  private final Object[][] chunks;
+  // index of the first element of each chunk
+  private final int[] starts;
+  private final int size;
+
+  private SortedSnapshot(Comparator<? super T> comparator, Object[][] chunks) {
+    this.comparator = comparator;
+    this.chunks = chunks;
+    this.starts = new int[chunks.length];
+    int total = 0;
+    for (int i = 0; i < chunks.length; i++) {
+      starts[i] = total;
+      total += chunks[i].length;
+    }
+    this.size = total;
+  }
+
+  static <T> SortedSnapshot<T> empty(Comparator<? super T> comparator) {
+    return new SortedSnapshot<>(comparator, NO_CHUNKS);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public T get(int index) {
+    if (0 > index || index >= size) {
+      throw new IndexOutOfBoundsException("Index " + index + " for size " +
+          size);
+    }
+    int chunk = chunkOf(index);
+    return (T) chunks[chunk][index - starts[chunk]];
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return iterator(0, size, false);
+  }
+
+  /**
+   * Iterate the positions from (inclusive) to (exclusive) walking the chunks
+   * directly, last position first when descending.
+   */
+  Iterator<T> iterator(final int from, final int to, final boolean descending) {
+    return new Iterator<T>() {
+
+      private int remaining = Math.max(0, to - from);
+      private int chunk = 0 == remaining ? 0 :
+          chunkOf(descending ? to - 1 : from);
+      private int offset = 0 == remaining ? 0 :
+          (descending ? to - 1 : from) - starts[chunk];
+
+      @Override
+      public boolean hasNext() {
+        return 0 < remaining;
+      }
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public T next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        T result = (T) chunks[chunk][offset];
+        remaining--;
+        if (0 == remaining) {
+          return result;
+        }
+        if (descending) {
+          if (0 > --offset) {
+            chunk--;
+            offset = chunks[chunk].length - 1;
+          }
+        } else if (chunks[chunk].length == ++offset) {
+          chunk++;
+          offset = 0;
+        }
+        return result;
+      }
+    };
+  }
+
+  /**
+   * Spliterator over the whole version. It is sized and splits by position
+   * in halves so parallel streams divide the work evenly without copying.
+   */
+  @Override
+  public Spliterator<T> spliterator() {
+    return new ChunkSpliterator(0, size);
+  }
+
+  /**
+   * Find the number of leading elements matching a predicate which holds for
+   * a prefix of this list, such as 'sorts before a bound', by binary search.
+   */
+  @SuppressWarnings("unchecked")
+  int partition(Predicate<? super T> leading) {
+    int low = 0;
+    int high = chunks.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      Object[] candidate = chunks[middle];
+      if (leading.test((T) candidate[candidate.length - 1])) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    if (chunks.length == low) {
+      return size;
+    }
+    Object[] chunk = chunks[low];
+    int first = 0;
+    int last = chunk.length;
+    while (first < last) {
+      int middle = (first + last) >>> 1;
+      if (leading.test((T) chunk[middle])) {
+        first = middle + 1;
+      } else {
+        last = middle;
+      }
+    }
+    return starts[low] + first;
+  }
+
+  /**
+   * Return a new version with the value inserted in sort order.
+   */
+  SortedSnapshot<T> with(T value) {
+    if (0 == chunks.length) {
+      return new SortedSnapshot<>(comparator, new Object[][] {{value}});
+    }
+    int chunk = chunkFor(value);
+    Object[] source = chunks[chunk];
+    int position = search(source, value);
+    if (0 <= position) {
+      throw new IllegalArgumentException("Value is already stored");
+    }
+    position = -(position) - 1;
+    Object[] grown = new Object[source.length + 1];
+    System.arraycopy(source, 0, grown, 0, position);
+    grown[position] = value;
+    System.arraycopy(source, position, grown, position + 1,
+        source.length - position);
+    if (grown.length <= MAX_CHUNK) {
+      return withChunk(chunk, grown);
+    }
+    int half = grown.length / 2;
+    Object[][] updated = new Object[chunks.length + 1][];
+    System.arraycopy(chunks, 0, updated, 0, chunk);
+    updated[chunk] = Arrays.copyOfRange(grown, 0, half);
+    updated[chunk + 1] = Arrays.copyOfRange(grown, half, grown.length);
+    System.arraycopy(chunks, chunk + 1, updated, chunk + 2,
+        chunks.length - chunk - 1);
+    return new SortedSnapshot<>(comparator, updated);
+  }
+
+  /**
+   * Return a new version without the value, or this version if it is not
+   * stored.
+   */
+  SortedSnapshot<T> without(T value) {
+    if (0 == chunks.length) {
+      return this;
+    }
+    int chunk = chunkFor(value);
+    Object[] source = chunks[chunk];
+    int position = search(source, value);
+    if (0 > position) {
+      return this;
+    }
+    Object[] shrunk = new Object[source.length - 1];
+    System.arraycopy(source, 0, shrunk, 0, position);
+    System.arraycopy(source, position + 1, shrunk, position,
+        source.length - position - 1);
+    if (shrunk.length >= MIN_CHUNK || 1 == chunks.length) {
+      if (0 == shrunk.length) {
+        return empty(comparator);
+      }
+      return withChunk(chunk, shrunk);
+    }
+    // merge small chunks into a neighbour to keep the chunk table compact
+    int neighbour = chunk + 1 < chunks.length ? chunk + 1 : chunk - 1;
+    int first = Math.min(chunk, neighbour);
+    Object[] left = first == chunk ? shrunk : chunks[first];
+    Object[] right = first == chunk ? chunks[neighbour] : shrunk;
+    Object[] merged = new Object[left.length + right.length];
+    System.arraycopy(left, 0, merged, 0, left.length);
+    System.arraycopy(right, 0, merged, left.length, right.length);
+    Object[][] updated;
+    if (merged.length <= MAX_CHUNK) {
+      updated = new Object[chunks.length - 1][];
+      System.arraycopy(chunks, 0, updated, 0, first);
+      updated[first] = merged;
+      System.arraycopy(chunks, first + 2, updated, first + 1,
+          chunks.length - first - 2);
+    } else {
+      int half = merged.length / 2;
+      updated = chunks.clone();
+      updated[first] = Arrays.copyOfRange(merged, 0, half);
+      updated[first + 1] = Arrays.copyOfRange(merged, half, merged.length);
+    }
+    return new SortedSnapshot<>(comparator, updated);
+  }
+
+  /**
+   * Return a new version with the stored value replaced by the update. When
+   * the two sort equally the update takes the same position, otherwise it is
+   * moved by a removal and a sorted insert.
+   */
+  SortedSnapshot<T> replacing(T stored, T update) {
+    if (0 != comparator.compare(stored, update)) {
+      return without(stored).with(update);
+    }
+    int chunk = chunkFor(stored);
+    Object[] source = chunks[chunk];
+    int position = search(source, stored);
+    if (0 > position) {
+      throw new IllegalArgumentException("Replaced value is not stored");
+    }
+    Object[] replaced = source.clone();
+    replaced[position] = update;
+    return withChunk(chunk, replaced);
+  }
+
+  private SortedSnapshot<T> withChunk(int chunk, Object[] replacement) {
+    Object[][] updated = chunks.clone();
+    updated[chunk] = replacement;
+    return new SortedSnapshot<>(comparator, updated);
+  }
+
+  /**
+   * Find the chunk that holds or would hold the value: the first chunk whose
+   * last element is not less than the value, or the last chunk.
+   */
+  @SuppressWarnings("unchecked")
+  private int chunkFor(T value) {
+    int low = 0;
+    int high = chunks.length - 1;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      Object[] candidate = chunks[middle];
+      if (0 > comparator.compare((T) candidate[candidate.length - 1], value)) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  private int chunkOf(int index) {
+    int position = Arrays.binarySearch(starts, index);
+    return 0 <= position ? position : -(position) - 2;
+  }
+
+  @SuppressWarnings("unchecked")
+  private int search(Object[] chunk, T value) {
+    return Arrays.binarySearch((T[]) chunk, value, comparator);
+  }
+
+  /**
+   * Spliterator over the positions from (inclusive) to fence (exclusive)
+   * reading the chunk arrays directly.
+   */
+  private final class ChunkSpliterator implements Spliterator<T> {
+
+    private int from;
+    private final int fence;
+    private int chunk;
+    private int offset;
+
+    ChunkSpliterator(int from, int fence) {
+      this.fence = fence;
+      seek(from);
+    }
+
+    private void seek(int position) {
+      from = position;
+      if (position < fence) {
+        chunk = chunkOf(position);
+        offset = position - starts[chunk];
+      }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean tryAdvance(Consumer<? super T> action) {
+      if (from >= fence) {
+        return false;
+      }
+      T value = (T) chunks[chunk][offset];
+      from++;
+      if (chunks[chunk].length == ++offset) {
+        chunk++;
+        offset = 0;
+      }
+      action.accept(value);
+      return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEachRemaining(Consumer<? super T> action) {
+      int remaining = fence - from;
+      while (0 < remaining) {
+        Object[] values = chunks[chunk];
+        int end = Math.min(values.length, offset + remaining);
+        for (int i = offset; i < end; i++) {
+          action.accept((T) values[i]);
+        }
+        remaining -= end - offset;
+        chunk++;
+        offset = 0;
+      }
+      from = fence;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+      int middle = (from + fence) >>> 1;
+      if (middle <= from) {
+        return null;
+      }
+      Spliterator<T> prefix = new ChunkSpliterator(from, middle);
+      seek(middle);
+      return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+      return fence - from;
+    }
+
+    @Override
+    public int characteristics() {
+      return ORDERED | SIZED | SUBSIZED | IMMUTABLE | NONNULL;
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package net.sitemorph.protostore.sql;
+
+import net.sitemorph.protostore.CrudException;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static net.sitemorph.protostore.sql.SqlStatements.setStatementValue;
+
+/**
+ * Aggregate queries shared by the SQL stores. Each compiles to a single
+ * SELECT with COUNT, MIN or MAX, optionally restricted to a match field value
+ * and grouped by a column, so only the aggregate rows leave the database.
+ * Statements are cached per shape in the statement cache of the session each
+ * query runs on.
+ */
+class Aggregates {
+
+  private final SessionPool sessions;
+  private final String tableName;
+  private final Message.Builder prototype;
+
+  Aggregates(SessionPool sessions, String tableName,
+      Message.Builder prototype) {
+    this.sessions = sessions;
+    this.tableName = tableName;
+    this.prototype = prototype;
+  }
+
+  long count(FieldDescriptor match, Object matchValue) throws CrudException {
+    return sessions.run("Error counting " + tableName, session -> {
+      PreparedStatement statement = getStatement(session, "COUNT(*)", null,
+          match, matchValue);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        return resultSet.next() ? resultSet.getLong(1) : 0L;
+      }
+    });
+  }
+
+  /**
+   * Count rows grouped by a column. Null column values are counted under the
+   * field default as they read as unset fields.
+   */
+  Map<Object, Long> countBy(FieldDescriptor group, FieldDescriptor match,
+      Object matchValue) throws CrudException {
+    RowReader reader = new RowReader(prototype,
+        Collections.singletonList(group), false);
+    return sessions.run("Error counting " + tableName + " by " +
+        group.getName(), session -> {
+      Map<Object, Long> counts = new HashMap<>();
+      PreparedStatement statement = getStatement(session, "COUNT(*)", group,
+          match, matchValue);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        while (resultSet.next()) {
+          Object value = reader.read(resultSet).getField(group);
+          counts.merge(value, resultSet.getLong(2), Long::sum);
+        }
+      }
+      return counts;
+    });
+  }
+
+  /**
+   * Find the MIN or MAX of a column, or null if no row matches.
+   */
+  Object extreme(String function, FieldDescriptor field, FieldDescriptor match,
+      Object matchValue) throws CrudException {
+    RowReader reader = new RowReader(prototype,
+        Collections.singletonList(field), false);
+    return sessions.run("Error finding " + function + " of " + tableName,
+        session -> {
+      PreparedStatement statement = getStatement(session,
+          function + "(" + field.getName() + ")", null, match, matchValue);
+      try (ResultSet resultSet = statement.executeQuery()) {
+        if (!resultSet.next()) {
+          return null;
+        }
+        Message.Builder row = reader.read(resultSet);
+        // only SQL NULL means no rows as a zero may read as an unset field
+        return resultSet.wasNull() ? null : row.getField(field);
+      }
+    });
+  }
+
+  private PreparedStatement getStatement(Session session, String aggregate,
+      FieldDescriptor group, FieldDescriptor match, Object matchValue)
+      throws SQLException, CrudException {
+    StringBuilder read = new StringBuilder();
+    read.append("SELECT ");
+    if (null != group) {
+      read.append(group.getName())
+          .append(", ");
+    }
+    read.append(aggregate)
+        .append(" FROM ")
+        .append(tableName);
+    if (null != match) {
+      read.append(" WHERE ")
+          .append(match.getName())
+          .append(" = ?");
+    }
+    if (null != group) {
+      read.append(" GROUP BY ")
+          .append(group.getName());
+    }
+    PreparedStatement statement = session.prepare(read.toString());
+    if (null != match) {
+      setStatementValue(statement, 1, match, matchValue);
+    }
+    return statement;
+  }
+}
@@ -1,30 +1,48 @@
 package net.sitemorph.protostore.sql;
 
-import com.google.protobuf.ByteString;
-import com.google.protobuf.Descriptors;
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.FieldMask;
 import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
 import net.sitemorph.protostore.CrudException;
 import net.sitemorph.protostore.CrudIterator;
+import net.sitemorph.protostore.CrudPage;
 import net.sitemorph.protostore.CrudStore;
 import net.sitemorph.protostore.MessageNotFoundException;
 import net.sitemorph.protostore.MessageVectorException;
+import net.sitemorph.protostore.RangeQuery;
 import net.sitemorph.protostore.SortOrder;
+import net.sitemorph.protostore.helper.BatchResults;
+import net.sitemorph.protostore.helper.CrudStreams;
+import net.sitemorph.protostore.helper.FieldMasks;
+import net.sitemorph.protostore.helper.IteratorAdaptorException;
+import net.sitemorph.protostore.helper.PageTokens;
 import net.sitemorph.protostore.ram.InMemoryStore;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
+import javax.sql.DataSource;
+
+import static net.sitemorph.protostore.sql.SqlStatements.bindPatch;
+import static net.sitemorph.protostore.sql.SqlStatements.getPageStatement;
+import static net.sitemorph.protostore.sql.SqlStatements.getPatchFields;
+import static net.sitemorph.protostore.sql.SqlStatements.getPatchStatement;
+import static net.sitemorph.protostore.sql.SqlStatements.getProjectionStatement;
+import static net.sitemorph.protostore.sql.SqlStatements.getRangeStatement;
+import static net.sitemorph.protostore.sql.SqlStatements.getSelectSql;
+
 /**
  * Legacy database protobuf mapping storage engine which supports Auto ID
  * generation etc and typical database use cases.
@@ -34,27 +52,39 @@ import java.util.stream.Stream;
 public class AutoIdCrudStore<T extends Message> implements CrudStore<T> {
 
   private Connection connection;
-  private PreparedStatement create;
-  private PreparedStatement read;
-  private PreparedStatement readAll;
-  private PreparedStatement update;
-  private PreparedStatement delete;
+  private DataSource dataSource;
+  private SessionPool sessions;
+  private String createSql;
+  private String readSql;
+  private String readAllSql;
+  private String updateSql;
+  private String deleteSql;
   private String tableName;
   private String autoIdColumn;
   private T.Builder builderPrototype;
+  private RowReader rowReader;
+  private boolean directFieldAccess = false;
+  private int fetchSize = 0;
+  private Aggregates aggregates;
+  private final Map<List<FieldDescriptor>, RowReader> projections =
+      new ConcurrentHashMap<>();
   private FieldDescriptor idDescriptor;
   private ColumnType idType;
-  private Map<FieldDescriptor, PreparedStatement> readIndexes;
+  private Map<FieldDescriptor, String> readIndexes;
   private FieldDescriptor vectorField;
 
   @Override
   public boolean supportsStreams() {
-    return false;
+    return true;
   }
 
   @Override
   public Stream<T> stream(Message.Builder builder) {
-    throw new UnsupportedOperationException();
+    try {
+      return CrudStreams.stream(read(builder), false);
+    } catch (CrudException e) {
+      throw new IteratorAdaptorException("Error opening stream", e);
+    }
   }
 
   /**
@@ -67,56 +97,100 @@ public class AutoIdCrudStore<T extends Message> implements CrudStore<T> {
 
   @Override
   public void close() throws CrudException {
-    try {
-      create.close();
-      read.close();
-      readAll.close();
-      update.close();
-      delete.close();
-      for (Map.Entry<FieldDescriptor, PreparedStatement> index :
-          readIndexes.entrySet()) {
-        index.getValue().close();
-      }
-    } catch (SQLException e) {
-      throw new CrudException("Error closing under prepared statements", e);
-    }
+    sessions.close();
   }
 
 
   @SuppressWarnings("unchecked")
   @Override
   public T create(T.Builder builder) throws CrudException {
-    try {
-      Descriptor descriptor = builder.getDescriptorForType();
-      List<FieldDescriptor> fields = descriptor.getFields();
+    return sessions.run("Error inserting value", session -> {
+      PreparedStatement create = session.prepareInsert(createSql);
       if (null != vectorField) {
         InMemoryStore.setInitialVector(builder, vectorField);
       }
-      int offset = 1;
-      for (FieldDescriptor field : fields) {
-        if (field.equals(idDescriptor)) {
-          continue;
-        }
-        if (!builder.hasField(field)) {
-          create.setNull(offset, offset++);
-          continue;
-        }
-        Object value = builder.getField(field);
-        setStatementValue(create, offset++, field, value);
-      }
+      bindFields(create, builder);
       create.executeUpdate();
       ResultSet keys = create.getGeneratedKeys();
       keys.next();
-      switch (idType) {
-        case INTEGER: builder.setField(idDescriptor, keys.getInt(1));
-          break;
-        case LONG: builder.setField(idDescriptor, keys.getLong(1));
+      setGeneratedId(builder, keys);
+      keys.close();
+      @SuppressWarnings("unchecked")
+      T built = (T) builder.build();
+      return built;
+    });
+  }
+
+  /**
+   * Create all messages in a single JDBC batch, reading the generated IDs of
+   * the created rows in row order.
+   *
+   * @throws CrudException if the driver doesn't return a generated ID for a
+   *     created row, as the row was written but its message can't be built
+   */
+  @Override
+  public List<T> createAll(Collection<? extends T.Builder> builders)
+      throws CrudException {
+    return sessions.run("Error inserting value batch", session -> {
+      PreparedStatement create = session.prepareInsert(createSql);
+      create.clearBatch();
+      for (Message.Builder builder : builders) {
+        if (null != vectorField) {
+          InMemoryStore.setInitialVector(builder, vectorField);
+        }
+        bindFields(create, builder);
+        create.addBatch();
+      }
+      BatchExecution batch = BatchExecution.execute(create);
+      BatchResults<T> results = new BatchResults<>();
+      try (ResultSet keys = create.getGeneratedKeys()) {
+        int row = 0;
+        for (Message.Builder builder : builders) {
+          if (!batch.applied(row)) {
+            results.fail(batch.failure(row, "Create"));
+          } else if (keys.next()) {
+            setGeneratedId(builder, keys);
+            @SuppressWarnings("unchecked")
+            T built = (T) builder.build();
+            results.add(built);
+          } else {
+            throw new CrudException("Create of batch row " + row + " was " +
+                "written but the driver returned no generated ID for it");
+          }
+          row++;
+        }
       }
+      return results.get("Create");
+    });
+  }
 
-      keys.close();
-      return (T) builder.build();
-    } catch (SQLException e) {
-      throw new CrudException("Error inserting value", e);
+  /**
+   * Set the values of all fields other than the ID from the builder as
+   * statement parameters, returning the next parameter offset.
+   */
+  private int bindFields(PreparedStatement statement, Message.Builder builder)
+      throws SQLException, CrudException {
+    int offset = 1;
+    for (FieldDescriptor field : builder.getDescriptorForType().getFields()) {
+      if (field.equals(idDescriptor)) {
+        continue;
+      }
+      if (!builder.hasField(field)) {
+        statement.setNull(offset, offset++);
+        continue;
+      }
+      Object value = builder.getField(field);
+      setStatementValue(statement, offset++, field, value);
+    }
+    return offset;
+  }
+
+  private void setGeneratedId(Message.Builder builder, ResultSet keys)
+      throws SQLException {
+    switch (idType) {
+      case INTEGER: builder.setField(idDescriptor, keys.getInt(1));
+        break;
+      case LONG: builder.setField(idDescriptor, keys.getLong(1));
     }
   }
 
@@ -134,30 +208,128 @@ public class AutoIdCrudStore<T extends Message> implements CrudStore<T> {
    */
   @Override
   public CrudIterator<T> read(T.Builder builder) throws CrudException {
-    try {
-      if (builder.hasField(idDescriptor)) {
-        Object value = builder.getField(idDescriptor);
-        setStatementValue(read, 1, idDescriptor, value);
-        return new DbFieldIterator<>(builder, read.executeQuery());
+    FieldDescriptor match = getMatchField(builder);
+    // no index value set so return all results
+    String sql = null == match ? readAllSql :
+        match.equals(idDescriptor) ? readSql : readIndexes.get(match);
+    return sessions.query("Error reading value caused by SQL exception",
+        rowReader, fetchSize, session -> {
+      PreparedStatement statement = session.prepare(sql);
+      if (null != match) {
+        setStatementValue(statement, 1, match, builder.getField(match));
       }
-      if (null == readIndexes) {
-        return new DbFieldIterator<>(builder, readAll.executeQuery());
+      return statement;
+    });
+  }
+
+  /**
+   * Read messages as for read(builder) with a narrower cached statement
+   * selecting only the masked columns.
+   */
+  @Override
+  public CrudIterator<T> read(T.Builder builder, FieldMask mask)
+      throws CrudException {
+    List<FieldDescriptor> fields = FieldMasks.getFields(
+        builderPrototype.getDescriptorForType(), mask);
+    RowReader reader = projections.computeIfAbsent(fields,
+        key -> new RowReader(builderPrototype, key, directFieldAccess));
+    FieldDescriptor match = getMatchField(builder);
+    return sessions.query("Error reading projection caused by SQL exception",
+        reader, fetchSize, session -> getProjectionStatement(session,
+            tableName, fields, match,
+            null == match ? null : builder.getField(match), null, null));
+  }
+
+  /**
+   * Read a range of auto ID values. As this store has no configured sort order
+   * ranges are over the auto ID column.
+   *
+   * @param builder context to read elements using a prototype.
+   * @param range of ID values to read
+   * @return iterator over the range
+   * @throws CrudException when there is an underlying storage error.
+   */
+  @Override
+  public CrudIterator<T> read(T.Builder builder, RangeQuery range)
+      throws CrudException {
+    FieldDescriptor match = getMatchField(builder);
+    return sessions.query("Error reading range caused by SQL exception",
+        rowReader, fetchSize, session -> getRangeStatement(session, tableName,
+            builderPrototype.getDescriptorForType().getFields(), match,
+            null == match ? null : builder.getField(match), idDescriptor,
+            SortOrder.ASCENDING, range));
+  }
+
+  /**
+   * Read a page of messages in auto ID order seeking past the ID held in the
+   * page token.
+   */
+  @Override
+  public CrudPage<T> readPage(T.Builder builder, String pageToken,
+      int pageSize) throws CrudException {
+    if (0 >= pageSize) {
+      throw new IllegalArgumentException("Page size must be positive");
+    }
+    FieldDescriptor match = getMatchField(builder);
+    Message after = null == pageToken ? null :
+        PageTokens.decode(builderPrototype, pageToken);
+    CrudIterator<T> items = sessions.query("Error reading page caused by " +
+        "SQL exception", rowReader, fetchSize, session -> getPageStatement(
+            session, tableName,
+            builderPrototype.getDescriptorForType().getFields(), match,
+            null == match ? null : builder.getField(match), idDescriptor,
+            SortOrder.ASCENDING, idDescriptor, after, pageSize + 1));
+    return PageTokens.readPage(items, pageSize, idDescriptor);
+  }
+
+  private FieldDescriptor getMatchField(T.Builder builder) {
+    if (builder.hasField(idDescriptor)) {
+      return idDescriptor;
+    }
+    for (FieldDescriptor field : readIndexes.keySet()) {
+      if (builder.hasField(field)) {
+        return field;
       }
+    }
+    return null;
+  }
 
-      for (Map.Entry<FieldDescriptor, PreparedStatement> entry : readIndexes.entrySet()) {
-        FieldDescriptor field = entry.getKey();
-        PreparedStatement statement = entry.getValue();
-        if (builder.hasField(field)) {
-          Object value = builder.getField(entry.getKey());
-          setStatementValue(statement, 1, field, value);
-          return new DbFieldIterator<>(builder, statement.executeQuery());
-        }
+  @Override
+  public long count(T.Builder builder) throws CrudException {
+    FieldDescriptor match = getMatchField(builder);
+    return aggregates.count(match,
+        null == match ? null : builder.getField(match));
+  }
+
+  @Override
+  public Map<Object, Long> countBy(T.Builder builder, String indexField)
+      throws CrudException {
+    FieldDescriptor group = null;
+    for (FieldDescriptor field : readIndexes.keySet()) {
+      if (field.getName().equals(indexField)) {
+        group = field;
       }
-      // no index value set so return all results
-      return new DbFieldIterator<>(builder, readAll.executeQuery());
-    } catch (SQLException e) {
-      throw new CrudException("Error reading value caused by SQL exception", e);
     }
+    if (null == group) {
+      throw new CrudException("Can't count by unindexed field: " + indexField);
+    }
+    FieldDescriptor match = getMatchField(builder);
+    return aggregates.countBy(group, match,
+        null == match ? null : builder.getField(match));
+  }
+
+  @Override
+  public Object min(T.Builder builder) throws CrudException {
+    FieldDescriptor match = getMatchField(builder);
+    return aggregates.extreme("MIN", idDescriptor, match,
+        null == match ? null : builder.getField(match));
+  }
+
+  @Override
+  public Object max(T.Builder builder) throws CrudException {
+    FieldDescriptor match = getMatchField(builder);
+    return aggregates.extreme("MAX", idDescriptor, match,
+        null == match ? null : builder.getField(match));
   }
 
   @Override
@@ -178,48 +350,138 @@ public class AutoIdCrudStore<T extends Message> implements CrudStore<T> {
     if (!builder.hasField(idDescriptor)) {
       throw new CrudException("Can't update message due to missing ID");
     }
+    int updated = sessions.run("Error updating store", session -> {
+      PreparedStatement update = session.prepare(updateSql);
+      bindUpdate(update, builder);
+      return update.executeUpdate();
+    });
+    if (0 == updated) {
+      throw getWriteFailure(builder, "Update");
+    }
+    @SuppressWarnings("unchecked")
+    T built = (T) builder.build();
+    return built;
+  }
+
+  /**
+   * Update only the masked columns, with the vector checked in the where
+   * clause as for update.
+   */
+  @Override
+  public T update(T.Builder builder, FieldMask mask) throws CrudException {
+    if (!builder.hasField(idDescriptor)) {
+      throw new CrudException("Can't update message due to missing ID");
+    }
+    List<FieldDescriptor> fields = getPatchFields(
+        builder.getDescriptorForType(), mask, idDescriptor, vectorField);
+    int updated = sessions.run("Error updating store", session -> {
+      PreparedStatement statement = getPatchStatement(session, tableName,
+          fields, idDescriptor, vectorField);
+      bindPatch(statement, builder, fields, idDescriptor, vectorField);
+      return statement.executeUpdate();
+    });
+    if (0 == updated) {
+      throw getWriteFailure(builder, "Update");
+    }
+    @SuppressWarnings("unchecked")
+    T built = (T) builder.buildPartial();
+    return built;
+  }
+
+  /**
+   * Find why a write of a message changed no row: either the message is not
+   * stored or, for a versioned store, its vector is out of date. Only called
+   * once a write has missed, and its session given back, so the extra read is
+   * off the normal write path.
+   */
+  private CrudException getWriteFailure(MessageOrBuilder message,
+      String operation) throws CrudException {
+    Object id = message.getField(idDescriptor);
     if (null != vectorField) {
-      if (!builder.hasField(vectorField)) {
-        throw new MessageVectorException("Update is missing clock vector");
-      }
-      CrudIterator<T> priors = read(builder);
-      if (!priors.hasNext()) {
-        priors.close();
-        throw new CrudException("Update attempted for unknown message: " +
-            builder.getField(idDescriptor));
-      }
-      T prior = priors.next();
+      Message.Builder key = builderPrototype.clone().clear();
+      key.setField(idDescriptor, id);
+      CrudIterator<T> priors = read(key);
+      boolean found = priors.hasNext();
       priors.close();
-      if (!prior.getField(vectorField).equals(builder.getField(vectorField))) {
-        throw new MessageVectorException("Update vector is out of date");
+      if (found) {
+        return new MessageVectorException(operation +
+            " vector is out of date");
       }
-      InMemoryStore.updateVector(builder, vectorField);
     }
-    try {
-      Descriptor descriptor = builder.getDescriptorForType();
-      List<FieldDescriptor> fields = descriptor.getFields();
-      int offset = 1;
-      for (FieldDescriptor field : fields) {
-        if (field.equals(idDescriptor)) {
-          continue;
+    return new MessageNotFoundException(operation + " attempted for " +
+        "unknown message: " + id);
+  }
+
+  /**
+   * Update all messages in a single JDBC batch. Rows without a vector are
+   * rejected before the batch runs. Each other row is a compare and set
+   * update as for update, so a row with an out of date vector or unknown ID
+   * changes nothing and is reported as failed.
+   */
+  @Override
+  public List<T> updateAll(Collection<? extends T.Builder> builders)
+      throws CrudException {
+    for (Message.Builder builder : builders) {
+      if (!builder.hasField(idDescriptor)) {
+        throw new CrudException("Can't update message due to missing ID");
+      }
+    }
+    return sessions.run("Error updating store batch", session -> {
+      PreparedStatement update = session.prepare(updateSql);
+      update.clearBatch();
+      Map<Integer, CrudException> rejected = new HashMap<>();
+      int row = 0;
+      for (Message.Builder builder : builders) {
+        try {
+          bindUpdate(update, builder);
+          update.addBatch();
+        } catch (MessageVectorException e) {
+          rejected.put(row, e);
         }
-        if (!builder.hasField(field)) {
-          update.setNull(offset, offset++);
-          continue;
+        row++;
+      }
+      BatchExecution batch = BatchExecution.execute(update);
+      BatchResults<T> results = new BatchResults<>();
+      row = 0;
+      int batchRow = 0;
+      for (Message.Builder builder : builders) {
+        if (rejected.containsKey(row)) {
+          results.fail(rejected.get(row));
+        } else if (batch.applied(batchRow)) {
+          @SuppressWarnings("unchecked")
+          T built = (T) builder.build();
+          results.add(built);
+          batchRow++;
+        } else {
+          results.fail(batch.failure(batchRow++, "Update"));
         }
-        Object value = builder.getField(field);
-        setStatementValue(update, offset++, field, value);
+        row++;
       }
-      // update has the last field as the id 'always' as it is the where
-      setStatementValue(update, offset, idDescriptor,
-          builder.getField(idDescriptor));
-      int updated = update.executeUpdate();
-      if (0 == updated) {
-        throw new MessageNotFoundException("Attempt to update failed as not found");
+      return results.get("Update");
+    });
+  }
+
+  /**
+   * Set the update parameters for a builder. For a versioned store the
+   * builder vector is moved on to the new value written and the prior value
+   * is matched in the where clause so the check and write are one statement.
+   */
+  private void bindUpdate(PreparedStatement update, Message.Builder builder)
+      throws SQLException, CrudException {
+    long vector = 0;
+    if (null != vectorField) {
+      if (!builder.hasField(vectorField)) {
+        throw new MessageVectorException("Update is missing clock vector");
       }
-      return (T) builder.build();
-    } catch (SQLException e) {
-      throw new CrudException("Error updating store", e);
+      vector = (Long) builder.getField(vectorField);
+      InMemoryStore.updateVector(builder, vectorField);
+    }
+    int offset = bindFields(update, builder);
+    // update has the id then the prior vector as the where
+    setStatementValue(update, offset++, idDescriptor,
+        builder.getField(idDescriptor));
+    if (null != vectorField) {
+      update.setLong(offset, vector);
     }
   }
 
@@ -228,31 +490,71 @@ public class AutoIdCrudStore<T extends Message> implements CrudStore<T> {
     if(!message.hasField(idDescriptor)) {
       throw new CrudException("Can't delete message due to missing urn");
     }
-    if (null != vectorField) {
-      if (!message.hasField(vectorField)) {
-        throw new MessageVectorException("Delete is missing clock vector");
+    int deleted = sessions.run("Error deleting from store", session -> {
+      PreparedStatement delete = session.prepare(deleteSql);
+      bindDelete(delete, message);
+      return delete.executeUpdate();
+    });
+    if (0 == deleted) {
+      throw getWriteFailure(message, "Delete");
+    }
+  }
+
+  /**
+   * Delete all messages in a single JDBC batch. Rows without a vector are
+   * rejected before the batch runs. Each other row is a compare and set
+   * delete as for delete, so a row with an out of date vector or unknown ID
+   * deletes nothing and is reported as failed.
+   */
+  @Override
+  public void deleteAll(Collection<T> messages) throws CrudException {
+    for (T message : messages) {
+      if (!message.hasField(idDescriptor)) {
+        throw new CrudException("Can't delete message due to missing ID");
       }
-      CrudIterator<T> priors = read(message.toBuilder());
-      if (!priors.hasNext()) {
-        priors.close();
-        throw new CrudException("Delete attempted for unknown message: " +
-            message.getField(idDescriptor));
+    }
+    sessions.run("Error deleting from store batch", session -> {
+      PreparedStatement delete = session.prepare(deleteSql);
+      delete.clearBatch();
+      Map<Integer, CrudException> rejected = new HashMap<>();
+      int row = 0;
+      for (T message : messages) {
+        try {
+          bindDelete(delete, message);
+          delete.addBatch();
+        } catch (MessageVectorException e) {
+          rejected.put(row, e);
+        }
+        row++;
       }
-      T prior = priors.next();
-      priors.close();
-      if (!prior.getField(vectorField).equals(message.getField(vectorField))) {
-        throw new MessageVectorException("Delete vector is out of date");
+      BatchExecution batch = BatchExecution.execute(delete);
+      BatchResults<T> results = new BatchResults<>();
+      row = 0;
+      int batchRow = 0;
+      for (T message : messages) {
+        if (rejected.containsKey(row)) {
+          results.fail(rejected.get(row));
+        } else if (batch.applied(batchRow)) {
+          results.add(message);
+          batchRow++;
+        } else {
+          results.fail(batch.failure(batchRow++, "Delete"));
+        }
+        row++;
       }
-    }
-    try {
-      setStatementValue(delete, 1, idDescriptor,
-          message.getField(idDescriptor));
-      int deleted = delete.executeUpdate();
-      if (0 == deleted) {
-        throw new MessageNotFoundException("Attempt to delete failed as not found");
+      results.get("Delete");
+      return null;
+    });
+  }
+
+  private void bindDelete(PreparedStatement delete, T message)
+      throws SQLException, CrudException {
+    setStatementValue(delete, 1, idDescriptor, message.getField(idDescriptor));
+    if (null != vectorField) {
+      if (!message.hasField(vectorField)) {
+        throw new MessageVectorException("Delete is missing clock vector");
       }
-    } catch (SQLException e) {
-      throw new CrudException("Error deleting from store", e);
+      delete.setLong(2, (Long) message.getField(vectorField));
     }
   }
 
@@ -275,6 +577,8 @@ public class AutoIdCrudStore<T extends Message> implements CrudStore<T> {
       }
       Descriptor descriptor = result.builderPrototype.getDescriptorForType();
       List<FieldDescriptor> fields = descriptor.getFields();
+      result.rowReader = new RowReader(result.builderPrototype, fields,
+          result.directFieldAccess);
       for (FieldDescriptor field : fields) {
         if (field.getName().equals(result.autoIdColumn)) {
           result.idDescriptor = field;
@@ -316,31 +620,22 @@ public class AutoIdCrudStore<T extends Message> implements CrudStore<T> {
       }
       create.delete(create.length() - 2, create.length());
       create.append(")");
-      try {
-        result.create = result.connection.prepareStatement(
-            create.toString(), Statement.RETURN_GENERATED_KEYS);
-      } catch (SQLException e) {
-        throw new CrudException("Error generating insert of account");
-      }
+      result.createSql = create.toString();
 
       // READ
       result.readIndexes = new HashMap<>();
-      try {
-        // add extra indexes
-        for (FieldDescriptor field : fields) {
-          if (indexes.contains(field.getName())) {
-            // TODO 20131002 Implement sort order support
-            result.readIndexes.put(field, getStatement(result.connection,
-                result.tableName, fields, field, null, null));
-          }
+      // add extra indexes
+      for (FieldDescriptor field : fields) {
+        if (indexes.contains(field.getName())) {
+          // TODO 20131002 Implement sort order support
+          result.readIndexes.put(field, getSelectSql(result.tableName, fields,
+              field, null, null));
         }
-        result.read = getStatement(result.connection, result.tableName,
-            fields, result.idDescriptor, null, null);
-        result.readAll = getStatement(result.connection, result.tableName,
-            fields, null, null, null);
-      } catch (SQLException e) {
-        throw new CrudException("Error building crud store", e);
       }
+      result.readSql = getSelectSql(result.tableName, fields,
+          result.idDescriptor, null, null);
+      result.readAllSql = getSelectSql(result.tableName, fields, null, null,
+          null);
 
       // UPDATE
       StringBuilder update = new StringBuilder();
@@ -358,11 +653,12 @@ public class AutoIdCrudStore<T extends Message> implements CrudStore<T> {
       update.append(" WHERE ")
           .append(result.idDescriptor.getName())
           .append(" = ?");
-      try {
-        result.update = result.connection.prepareStatement(update.toString());
-      } catch (SQLException e) {
-        throw new CrudException("Error creating crud update statement", e);
+      if (null != result.vectorField) {
+        update.append(" AND ")
+            .append(result.vectorField.getName())
+            .append(" = ?");
       }
+      result.updateSql = update.toString();
 
       //DELETE
       StringBuilder delete = new StringBuilder();
@@ -371,20 +667,62 @@ public class AutoIdCrudStore<T extends Message> implements CrudStore<T> {
           .append(" WHERE ")
           .append(result.idDescriptor.getName())
           .append(" = ?");
-      try {
-        result.delete = result.connection.prepareStatement(delete.toString());
-      } catch (SQLException e) {
-        throw new CrudException("Error creating crud delete statement", e);
+      if (null != result.vectorField) {
+        delete.append(" AND ")
+            .append(result.vectorField.getName())
+            .append(" = ?");
+      }
+      result.deleteSql = delete.toString();
+
+      if (null != result.connection) {
+        result.sessions = new SessionPool(result.connection);
+      } else if (null != result.dataSource) {
+        result.sessions = new SessionPool(result.dataSource);
+      } else {
+        throw new CrudException("Connection or data source required but not " +
+            "set");
       }
+      result.aggregates = new Aggregates(result.sessions, result.tableName,
+          result.builderPrototype);
+      // prepare the statements up front so a bad mapping fails the build
+      result.sessions.run("Error preparing crud store statements",
+          session -> {
+        session.prepareInsert(result.createSql);
+        session.prepare(result.readSql);
+        session.prepare(result.readAllSql);
+        for (String read : result.readIndexes.values()) {
+          session.prepare(read);
+        }
+        session.prepare(result.updateSql);
+        session.prepare(result.deleteSql);
+        return null;
+      });
 
       return result;
     }
 
+    /**
+     * Set a single connection for the store to use for every operation. A
+     * store on one connection must not be used concurrently.
+     */
     public Builder<F> setConnection(Connection connection) {
       result.connection = connection;
       return this;
     }
 
+    /**
+     * Set a data source for the store to borrow a connection from for each
+     * operation, so concurrent callers each use their own connection. The
+     * connection goes back to the data source when the operation ends, so
+     * statement reuse is left to the pool or driver statement cache. Read
+     * iterators hold their connection until they are closed or run out of
+     * rows.
+     */
+    public Builder<F> setDataSource(DataSource dataSource) {
+      result.dataSource = dataSource;
+      return this;
+    }
+
     public Builder<F> setTableName(String tableName) {
       result.tableName = tableName;
       return this;
@@ -416,6 +754,45 @@ public class AutoIdCrudStore<T extends Message> implements CrudStore<T> {
       return this;
     }
 
+    /**
+     * Set rows to be read through the generated builder setters rather than
+     * protobuf reflection where the message type allows it. Off by default.
+     */
+    public Builder<F> setDirectFieldAccess(boolean directFieldAccess) {
+      result.directFieldAccess = directFieldAccess;
+      return this;
+    }
+
+    /**
+     * Set the number of rows the driver should fetch per round trip for
+     * reads. Zero, the default, leaves the driver default which for MySQL
+     * Connector/J buffers the whole result set in memory.
+     */
+    public Builder<F> setFetchSize(int fetchSize) {
+      if (0 > fetchSize) {
+        throw new IllegalArgumentException("Fetch size can't be negative");
+      }
+      result.fetchSize = fetchSize;
+      return this;
+    }
+
+    /**
+     * Set reads to stream rows one at a time from the server, keeping memory
+     * constant for large scans. This uses the Connector/J streaming fetch
+     * size of Integer.MIN_VALUE on forward only, read only statements. While
+     * a streamed iterator is open no other statement can be run on the
+     * connection, so close iterators before writing. Drivers with cursor
+     * based fetching should use a positive fetch size instead.
+     */
+    public Builder<F> setStreaming(boolean streaming) {
+      if (streaming) {
+        result.fetchSize = Integer.MIN_VALUE;
+      } else if (Integer.MIN_VALUE == result.fetchSize) {
+        result.fetchSize = 0;
+      }
+      return this;
+    }
+
     public Builder<F> addIndexField(String fieldName) {
       indexes.add(fieldName);
       return this;
@@ -434,81 +811,13 @@ public class AutoIdCrudStore<T extends Message> implements CrudStore<T> {
       String tableName, List<FieldDescriptor> fields, FieldDescriptor match,
       FieldDescriptor sortField, SortOrder order)
       throws SQLException {
-    StringBuilder read = new StringBuilder();
-    read.append("SELECT ");
-    for (FieldDescriptor field : fields) {
-      read.append(field.getName())
-          .append(", ");
-    }
-    read.delete(read.length() - 2, read.length());
-    read.append(" FROM ")
-        .append(tableName);
-    if (null != match) {
-      read.append(" WHERE ")
-          .append(match.getName())
-          .append(" = ?");
-    }
-    if (null != sortField) {
-      read.append(" ORDER BY ")
-          .append(sortField.getName());
-    }
-    if (null != order) {
-      read.append(" ");
-      switch (order) {
-        case ASCENDING : read.append("ASC");
-          break;
-        case DESCENDING: read.append("DESC");
-      }
-    }
-    //log.debug("Created read statement {}", read.toString());
     return connection.prepareStatement(
-        read.toString());
+        getSelectSql(tableName, fields, match, sortField, order),
+        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
   }
 
   public static void setStatementValue(PreparedStatement statement, int index,
       FieldDescriptor field, Object value) throws SQLException, CrudException {
-    if (null == value) {
-      statement.setNull(index, index);
-      return;
-    }
-    switch (field.getType()) {
-      case INT64:
-      case SINT64:
-      case SFIXED64:
-      case UINT64:
-      case FIXED64:
-        statement.setLong(index, (Long) value);
-        break;
-      case SINT32:
-      case UINT32:
-      case SFIXED32:
-      case FIXED32:
-      case INT32:
-        statement.setInt(index, (Integer) value);
-        break;
-      case BOOL:
-        statement.setBoolean(index, (Boolean) value);
-        break;
-      case STRING:
-        statement.setString(index, (String) value);
-        break;
-      case ENUM:
-        //statement.setString(index, ((Enum)value).name());
-        statement.setString(index,
-            ((Descriptors.EnumValueDescriptor)value).getName());
-        break;
-      case FLOAT:
-        statement.setFloat(index, (Float)value);
-        break;
-      case DOUBLE:
-        statement.setDouble(index, (Double)value);
-        break;
-      case BYTES :
-        statement.setBytes(index, ((ByteString) value).toByteArray());
-        break;
-      default:
-        throw new CrudException("Index could not be generated for " +
-            "unsupported type: " + field.getType().name());
-    }
+    SqlStatements.setStatementValue(statement, index, field, value);
   }
 }
@@ -4,16 +4,28 @@ import net.sitemorph.protostore.CrudException;
 import net.sitemorph.protostore.CrudFactory;
 import net.sitemorph.protostore.CrudStore;
 import net.sitemorph.protostore.SortOrder;
+import net.sitemorph.protostore.UrnGenerator;
+import net.sitemorph.protostore.helper.RandomUrnGenerator;
 
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Message;
 
 import java.sql.Connection;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+import javax.sql.DataSource;
 
 /**
  * A store that uses predefined naming conventions to bind proto to storage.
@@ -24,6 +36,11 @@ import java.util.Set;
  * - urn field for urn mapping.
  * - fields ending Urn for index fields.
  * - fields named vector for version fields.
+ * - random UUID urns unless another urn generator is set.
+ *
+ * The factory is safe for concurrent use. Each message type's store is built
+ * once, on first request or by warmUp, and holds its own prepared statements.
+ * A failed build is not kept so the next request for the type tries again.
  *
  * @author damien@sitemorph.net
  */
@@ -35,34 +52,126 @@ public class AutoNamedFactory implements CrudFactory {
 
   private Set<String> indexFields;
   private Map<String, SortOrder> sortFields;
+  private UrnGenerator urnGenerator = new RandomUrnGenerator();
+  private boolean directFieldAccess = false;
+  private int fetchSize = 0;
+  private boolean streaming = false;
 
   private Connection connection;
-  private Map<String, CrudStore<? extends Message>> stores = new HashMap<>();
+  private DataSource dataSource;
+  private final Map<String, Message.Builder> registered = new LinkedHashMap<>();
+  // store of each type, completed by the thread which won the build
+  private final ConcurrentMap<String,
+      CompletableFuture<CrudStore<? extends Message>>> stores =
+      new ConcurrentHashMap<>();
 
   private AutoNamedFactory() {}
 
   public static Builder newBuilder(Connection connection) {
-    return new Builder(connection);
+    return new Builder(connection, null);
+  }
+
+  /**
+   * Create a factory whose stores borrow a connection from the data source
+   * for each operation.
+   */
+  public static Builder newBuilder(DataSource dataSource) {
+    return new Builder(null, dataSource);
   }
 
   @Override
   public <T extends Message> boolean supported(T.Builder builder) {
-    return stores.containsKey(builder.getDescriptorForType().getFullName());
+    String name = builder.getDescriptorForType().getFullName();
+    return registered.containsKey(name) || stores.containsKey(name);
   }
 
   @Override
   public <T extends Message> CrudStore<T> getCrudStore(T.Builder builder)
       throws CrudException {
     String name = builder.getDescriptorForType().getFullName();
-    if (stores.containsKey(name) && null != stores.get(name)) {
-      return (CrudStore<T>) stores.get(name);
+    CompletableFuture<CrudStore<? extends Message>> store = stores.get(name);
+    if (null == store) {
+      // only one thread builds a store for a type, others wait for it. The
+      // build runs outside the map so it doesn't block other types.
+      CompletableFuture<CrudStore<? extends Message>> build =
+          new CompletableFuture<>();
+      store = stores.putIfAbsent(name, build);
+      if (null == store) {
+        try {
+          build.complete(buildStore(builder));
+        } catch (CrudException | RuntimeException e) {
+          // let a later request try the build again
+          stores.remove(name, build);
+          build.completeExceptionally(e);
+          throw e;
+        }
+        store = build;
+      }
     }
+    try {
+      @SuppressWarnings("unchecked")
+      CrudStore<T> result = (CrudStore<T>) store.join();
+      return result;
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof CrudException) {
+        throw new CrudException("Error building store for " + name,
+            e.getCause());
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Build the stores of all registered message types ahead of their first
+   * request so no caller pays for preparing statements. Stores are built in
+   * parallel on the executor for a data source factory. A factory on a single
+   * connection builds them one at a time on the calling thread as the
+   * connection can't be shared between threads.
+   *
+   * @param executor to build stores on
+   * @throws CrudException for the first store which failed to build
+   */
+  public void warmUp(Executor executor) throws CrudException {
+    if (null != connection) {
+      for (Message.Builder builder : registered.values()) {
+        getCrudStore(builder);
+      }
+      return;
+    }
+    List<CompletableFuture<Void>> builds = new ArrayList<>();
+    for (Message.Builder builder : registered.values()) {
+      builds.add(CompletableFuture.runAsync(() -> {
+        try {
+          getCrudStore(builder);
+        } catch (CrudException e) {
+          throw new StoreBuildException(e);
+        }
+      }, executor));
+    }
+    try {
+      CompletableFuture.allOf(builds.toArray(new CompletableFuture<?>[0]))
+          .join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof StoreBuildException) {
+        throw ((StoreBuildException) e.getCause()).getCause();
+      }
+      throw e;
+    }
+  }
+
+  private CrudStore<? extends Message> buildStore(Message.Builder builder)
+      throws CrudException {
     UrnCrudStore.Builder<? extends Message> store =
         new UrnCrudStore.Builder<Message>();
     Descriptor descriptor = builder.getDescriptorForType();
     store.setConnection(connection)
+        .setDataSource(dataSource)
         .setPrototype(builder)
         .setTableName(descriptor.getName())
+        .setUrnGenerator(urnGenerator)
+        .setDirectFieldAccess(directFieldAccess)
+        .setFetchSize(fetchSize)
+        .setStreaming(streaming)
         .setUrnField(URN_FIELD);
     for (FieldDescriptor field : descriptor.getFields()) {
       String fieldName = field.getName();
@@ -76,18 +185,35 @@ public class AutoNamedFactory implements CrudFactory {
         store.setSortOrder(fieldName, sortFields.get(fieldName));
       }
     }
-    CrudStore<? extends Message> result = store.build();
-    stores.put(name, result);
-    return (CrudStore<T>) result;
+    return store.build();
+  }
+
+  /**
+   * Carries a store build failure out of the executor functions, which can't
+   * throw checked exceptions.
+   */
+  private static class StoreBuildException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    StoreBuildException(CrudException cause) {
+      super(cause);
+    }
+
+    @Override
+    public synchronized CrudException getCause() {
+      return (CrudException) super.getCause();
+    }
   }
 
   public static class Builder {
 
     private AutoNamedFactory result;
 
-    private Builder(Connection connection) {
+    private Builder(Connection connection, DataSource dataSource) {
       result = new AutoNamedFactory();
       result.connection = connection;
+      result.dataSource = dataSource;
       result.indexFields = new HashSet<>();
       result.sortFields = new HashMap<>();
     }
@@ -102,8 +228,43 @@ public class AutoNamedFactory implements CrudFactory {
       return this;
     }
 
+    /**
+     * Set the urn generator shared by all stores, for example a time ordered
+     * generator to keep primary key inserts in order.
+     */
+    public Builder setUrnGenerator(UrnGenerator urnGenerator) {
+      result.urnGenerator = urnGenerator;
+      return this;
+    }
+
+    /**
+     * Set stores to read rows through the generated builder setters rather
+     * than protobuf reflection.
+     */
+    public Builder setDirectFieldAccess(boolean directFieldAccess) {
+      result.directFieldAccess = directFieldAccess;
+      return this;
+    }
+
+    /**
+     * Set the read fetch size for all stores, see UrnCrudStore.
+     */
+    public Builder setFetchSize(int fetchSize) {
+      result.fetchSize = fetchSize;
+      return this;
+    }
+
+    /**
+     * Set all stores to stream reads row by row, see UrnCrudStore.
+     */
+    public Builder setStreaming(boolean streaming) {
+      result.streaming = streaming;
+      return this;
+    }
+
     public Builder registerMessage(Message.Builder builder) {
-      result.stores.put(builder.getDescriptorForType().getFullName(), null);
+      result.registered.put(builder.getDescriptorForType().getFullName(),
+          builder);
       return this;
     }
 
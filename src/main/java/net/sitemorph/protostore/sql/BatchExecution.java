@@ -0,0 +1,56 @@
+package net.sitemorph.protostore.sql;
+
+import net.sitemorph.protostore.CrudException;
+import net.sitemorph.protostore.MessageVectorException;
+
+import java.sql.BatchUpdateException;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Executes a JDBC statement batch and reports the outcome of each row. Drivers
+ * may stop at the first failed row, in which case the rows that were not run
+ * are reported as failed along with the batch error.
+ */
+class BatchExecution {
+
+  private final int[] counts;
+  private final BatchUpdateException error;
+
+  private BatchExecution(int[] counts, BatchUpdateException error) {
+    this.counts = null == counts ? new int[0] : counts;
+    this.error = error;
+  }
+
+  static BatchExecution execute(PreparedStatement statement)
+      throws SQLException {
+    try {
+      return new BatchExecution(statement.executeBatch(), null);
+    } catch (BatchUpdateException e) {
+      return new BatchExecution(e.getUpdateCounts(), e);
+    }
+  }
+
+  /**
+   * Check if a row changed the store, counting rows the driver ran without
+   * reporting a count as changed.
+   */
+  boolean applied(int row) {
+    return row < counts.length &&
+        (0 < counts[row] || Statement.SUCCESS_NO_INFO == counts[row]);
+  }
+
+  /**
+   * Get the failure of a row which was not applied. A row that ran without
+   * changing anything matched no message with its urn and vector.
+   */
+  CrudException failure(int row, String operation) {
+    if (row < counts.length && 0 == counts[row]) {
+      return new MessageVectorException(operation + " of batch row " + row +
+          " failed due to missing message or vector mismatch");
+    }
+    return new CrudException(operation + " of batch row " + row + " failed",
+        error);
+  }
+}
@@ -4,9 +4,7 @@ import net.sitemorph.protostore.CrudException;
 import net.sitemorph.protostore.CrudIterator;
 import net.sitemorph.protostore.MessageNotFoundException;
 
-import com.google.protobuf.ByteString;
 import com.google.protobuf.Descriptors.Descriptor;
-import com.google.protobuf.Descriptors.EnumValueDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Message;
 
@@ -20,7 +18,8 @@ import java.util.Set;
 /**
  * Iterator that uses builder fields to index a prepared statement.
  *
- * Assumes that the prepared statement uses the field list from the builder
+ * Assumes that the prepared statement uses the field list from the builder,
+ * or the columns of the row reader if one is supplied.
  *
  * @author dak
  *
@@ -30,14 +29,36 @@ import java.util.Set;
 public class DbFieldIterator<T extends Message> implements CrudIterator<T> {
 
   private final ResultSet resultSet;
-  private Message.Builder prototype;
+  private final RowReader rowReader;
+  private final SessionPool sessions;
+  private final Session session;
   private boolean readAhead = false;
   private boolean hasNext = false;
+  private boolean closed = false;
+  private boolean failed = false;
 
   public DbFieldIterator(T.Builder builder, ResultSet resultSet) {
-    // nasty setup required
-    prototype = builder;
+    this(new RowReader(builder), resultSet);
+  }
+
+  /**
+   * Iterate rows using a row reader plan prepared by the store so that no
+   * per row field type resolution is needed.
+   */
+  public DbFieldIterator(RowReader rowReader, ResultSet resultSet) {
+    this(rowReader, resultSet, null, null);
+  }
+
+  /**
+   * Iterate rows read with a session which is given back to its pool once the
+   * iterator is closed or runs out of rows.
+   */
+  DbFieldIterator(RowReader rowReader, ResultSet resultSet,
+      SessionPool sessions, Session session) {
+    this.rowReader = rowReader;
     this.resultSet = resultSet;
+    this.sessions = sessions;
+    this.session = session;
   }
 
   public static String getCrudFieldList(Descriptor descriptor, String alias,
@@ -71,7 +92,9 @@ public class DbFieldIterator<T extends Message> implements CrudIterator<T> {
   @SuppressWarnings("unchecked")
   @Override
   public T next() throws CrudException {
-    Message.Builder next = prototype.clone();
+    if (closed) {
+      throw new MessageNotFoundException("Called next when no more records");
+    }
     try {
       if (!readAhead) {
         hasNext = resultSet.next();
@@ -81,93 +104,55 @@ public class DbFieldIterator<T extends Message> implements CrudIterator<T> {
       if (!hasNext) {
         throw new MessageNotFoundException("Called next when no more records");
       }
-      Descriptor descriptor = prototype.getDescriptorForType();
-      int offset = 1;
-      for (FieldDescriptor field : descriptor.getFields()) {
-        Object value;
-        switch (field.getType()) {
-          case DOUBLE :
-            value = resultSet.getDouble(offset++);
-            break;
-          case FLOAT :
-            value = resultSet.getFloat(offset++);
-            break;
-          case INT64:
-          case SINT64:
-          case SFIXED64:
-          case UINT64:
-          case FIXED64 :
-            value = resultSet.getLong(offset++);
-            break;
-          case SINT32:
-          case UINT32:
-          case SFIXED32:
-          case FIXED32:
-          case INT32:
-            value = resultSet.getInt(offset++);
-            break;
-          case BOOL:
-            value = resultSet.getBoolean(offset++);
-            break;
-          case STRING:
-            value = resultSet.getString(offset++);
-            break;
-          case ENUM :
-            String key = resultSet.getString(offset++);
-            EnumValueDescriptor enumDescriptor =
-                field.getEnumType().findValueByName(key);
-            if (null != key && null == enumDescriptor) {
-              throw new CrudException("Error finding enum " +
-                  field.getEnumType().getName() + " value " + key);
-            }
-            value = enumDescriptor;
-            break;
-          case BYTES :
-            byte[] data = resultSet.getBytes(offset++);
-            if (null != data && 0 < data.length) {
-              value = ByteString.copyFrom(data);
-            } else {
-              value = null;
-            }
-            break;
-          //case GROUP:
-          //case MESSAGE:
-          default:
-            throw new CrudException("Unsupported proto field type: " +
-                field.getType().name());
-        }
-        if (resultSet.wasNull() || null == value) {
-          next.clearField(field);
-        } else {
-          next.setField(field, value);
-        }
-      }
       readAhead = false;
-      return (T) next.build();
+      Message.Builder row = rowReader.read(resultSet);
+      return (T) (rowReader.isPartial() ? row.buildPartial() : row.build());
     } catch (SQLException e) {
+      failed = true;
       throw new CrudException("Error reading proto field", e);
     }
   }
 
   @Override
   public boolean hasNext() throws CrudException {
+    if (closed) {
+      return false;
+    }
     try {
       if (!readAhead) {
         hasNext = resultSet.next();
         readAhead = true;
       }
-      return hasNext;
     } catch (SQLException e) {
+      failed = true;
       throw new CrudException("Error checking for next crud object", e);
     }
+    if (!hasNext && null != session) {
+      // give the session back as soon as the rows run out
+      close();
+    }
+    return hasNext;
   }
 
   @Override
   public void close() throws CrudException {
+    if (closed) {
+      return;
+    }
+    closed = true;
     try {
       resultSet.close();
     } catch (SQLException e) {
+      failed = true;
       throw new CrudException("Error closing crud iterator", e);
+    } finally {
+      if (null != session) {
+        if (failed) {
+          sessions.discard(session);
+        } else {
+          sessions.release(session);
+        }
+      }
     }
   }
 }
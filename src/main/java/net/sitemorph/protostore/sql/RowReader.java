@@ -0,0 +1,277 @@
+package net.sitemorph.protostore.sql;
+
+import net.sitemorph.protostore.CrudException;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Precompiled plan for decoding result set rows into messages. The field
+ * types are resolved once when the plan is built into an array of column
+ * readers, with enum name lookups cached in maps, so decoding a row is a
+ * loop over the readers without any descriptor traversal.
+ *
+ * Plans are immutable and built once per store. A plan built for direct
+ * field access binds the setters of the generated message builder (such as
+ * setRunTime(long)) as method handles so that numeric columns are set without
+ * boxing or descriptor dispatch. Fields without a matching setter, enums and
+ * dynamic messages use the reflective path.
+ */
+public final class RowReader {
+
+  /**
+   * Reads the value of one column of the current row.
+   */
+  private interface ColumnReader {
+    Object read(ResultSet resultSet, int column)
+        throws SQLException, CrudException;
+  }
+
+  /**
+   * Reads one column of the current row into the row builder.
+   */
+  private interface ColumnMapper {
+    void map(ResultSet resultSet, int column, Message.Builder row)
+        throws Throwable;
+  }
+
+  private final Message defaultInstance;
+  private final ColumnMapper[] mappers;
+  private final boolean partial;
+
+  /**
+   * Build a plan for rows selecting every field of the message in descriptor
+   * order.
+   */
+  public RowReader(Message.Builder prototype) {
+    this(prototype, prototype.getDescriptorForType().getFields(), false);
+  }
+
+  /**
+   * Build a plan for rows selecting the given fields in order.
+   *
+   * @param prototype of the message type read
+   * @param columns selected by the statement in column order
+   * @param directAccess to bind generated builder setters where available
+   */
+  public RowReader(Message.Builder prototype, List<FieldDescriptor> columns,
+      boolean directAccess) {
+    defaultInstance = prototype.getDefaultInstanceForType();
+    Class<?> builderType = defaultInstance.newBuilderForType().getClass();
+    mappers = new ColumnMapper[columns.size()];
+    partial = columns.size() <
+        defaultInstance.getDescriptorForType().getFields().size();
+    for (int i = 0; i < mappers.length; i++) {
+      FieldDescriptor field = columns.get(i);
+      ColumnMapper mapper = null;
+      if (directAccess) {
+        mapper = getDirectMapper(builderType, field);
+      }
+      mappers[i] = null == mapper ? getReflectiveMapper(field) : mapper;
+    }
+  }
+
+  /**
+   * Check if the plan reads a projection of the message fields, in which case
+   * rows are built as partial messages.
+   */
+  public boolean isPartial() {
+    return partial;
+  }
+
+  /**
+   * Decode the current row of a result set.
+   *
+   * @param resultSet positioned on the row to read
+   * @return builder with the row values set and null columns left unset
+   * @throws CrudException on a value that can't be mapped
+   */
+  public Message.Builder read(ResultSet resultSet)
+      throws SQLException, CrudException {
+    Message.Builder next = defaultInstance.newBuilderForType();
+    try {
+      for (int i = 0; i < mappers.length; i++) {
+        mappers[i].map(resultSet, i + 1, next);
+      }
+    } catch (SQLException | CrudException | RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new CrudException("Error setting row field", e);
+    }
+    return next;
+  }
+
+  private static ColumnMapper getReflectiveMapper(final FieldDescriptor field) {
+    final ColumnReader reader = getColumnReader(field);
+    return (resultSet, column, row) -> {
+      Object value = reader.read(resultSet, column);
+      if (null != value && !resultSet.wasNull()) {
+        row.setField(field, value);
+      }
+    };
+  }
+
+  /**
+   * Bind the generated setter for a field, returning null when the field
+   * type or builder doesn't support direct access.
+   */
+  private static ColumnMapper getDirectMapper(Class<?> builderType,
+      FieldDescriptor field) {
+    if (field.isRepeated()) {
+      return null;
+    }
+    Class<?> valueType;
+    switch (field.getJavaType()) {
+      case INT: valueType = int.class; break;
+      case LONG: valueType = long.class; break;
+      case FLOAT: valueType = float.class; break;
+      case DOUBLE: valueType = double.class; break;
+      case BOOLEAN: valueType = boolean.class; break;
+      case STRING: valueType = String.class; break;
+      default: return null;
+    }
+    final MethodHandle setter;
+    try {
+      setter = MethodHandles.publicLookup()
+          .findVirtual(builderType, "set" + getAccessorName(field),
+              MethodType.methodType(builderType, valueType))
+          .asType(MethodType.methodType(void.class, Message.Builder.class,
+              valueType));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      return null;
+    }
+    switch (field.getJavaType()) {
+      case INT:
+        return (resultSet, column, row) -> {
+          int value = resultSet.getInt(column);
+          if (!resultSet.wasNull()) {
+            setter.invokeExact(row, value);
+          }
+        };
+      case LONG:
+        return (resultSet, column, row) -> {
+          long value = resultSet.getLong(column);
+          if (!resultSet.wasNull()) {
+            setter.invokeExact(row, value);
+          }
+        };
+      case FLOAT:
+        return (resultSet, column, row) -> {
+          float value = resultSet.getFloat(column);
+          if (!resultSet.wasNull()) {
+            setter.invokeExact(row, value);
+          }
+        };
+      case DOUBLE:
+        return (resultSet, column, row) -> {
+          double value = resultSet.getDouble(column);
+          if (!resultSet.wasNull()) {
+            setter.invokeExact(row, value);
+          }
+        };
+      case BOOLEAN:
+        return (resultSet, column, row) -> {
+          boolean value = resultSet.getBoolean(column);
+          if (!resultSet.wasNull()) {
+            setter.invokeExact(row, value);
+          }
+        };
+      default:
+        return (resultSet, column, row) -> {
+          String value = resultSet.getString(column);
+          if (null != value) {
+            setter.invokeExact(row, value);
+          }
+        };
+    }
+  }
+
+  /**
+   * Camel case accessor suffix protoc generates for a field name: underscores
+   * are dropped and the following letter, as well as the first letter and
+   * any letter after a digit, is upper cased.
+   */
+  static String getAccessorName(FieldDescriptor field) {
+    String name = field.getName();
+    StringBuilder accessor = new StringBuilder(name.length());
+    boolean upper = true;
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if ('_' == c) {
+        upper = true;
+      } else if (Character.isDigit(c)) {
+        accessor.append(c);
+        upper = true;
+      } else {
+        accessor.append(upper ? Character.toUpperCase(c) : c);
+        upper = false;
+      }
+    }
+    return accessor.toString();
+  }
+
+  private static ColumnReader getColumnReader(final FieldDescriptor field) {
+    switch (field.getType()) {
+      case DOUBLE :
+        return ResultSet::getDouble;
+      case FLOAT :
+        return ResultSet::getFloat;
+      case INT64:
+      case SINT64:
+      case SFIXED64:
+      case UINT64:
+      case FIXED64 :
+        return ResultSet::getLong;
+      case SINT32:
+      case UINT32:
+      case SFIXED32:
+      case FIXED32:
+      case INT32:
+        return ResultSet::getInt;
+      case BOOL:
+        return ResultSet::getBoolean;
+      case STRING:
+        return ResultSet::getString;
+      case ENUM :
+        final Map<String, EnumValueDescriptor> values = new HashMap<>();
+        for (EnumValueDescriptor value : field.getEnumType().getValues()) {
+          values.put(value.getName(), value);
+        }
+        return (resultSet, column) -> {
+          String key = resultSet.getString(column);
+          EnumValueDescriptor enumDescriptor = values.get(key);
+          if (null != key && null == enumDescriptor) {
+            throw new CrudException("Error finding enum " +
+                field.getEnumType().getName() + " value " + key);
+          }
+          return enumDescriptor;
+        };
+      case BYTES :
+        return (resultSet, column) -> {
+          byte[] data = resultSet.getBytes(column);
+          if (null != data && 0 < data.length) {
+            return ByteString.copyFrom(data);
+          }
+          return null;
+        };
+      //case GROUP:
+      //case MESSAGE:
+      default:
+        return (resultSet, column) -> {
+          throw new CrudException("Unsupported proto field type: " +
+              field.getType().name());
+        };
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package net.sitemorph.protostore.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A connection along with the statements a store has prepared on it, cached
+ * by their SQL for the life of the session. A session is used by one
+ * operation at a time.
+ */
+final class Session {
+
+  private final Connection connection;
+  private final Map<String, PreparedStatement> statements = new HashMap<>();
+
+  Session(Connection connection) {
+    this.connection = connection;
+  }
+
+  Connection getConnection() {
+    return connection;
+  }
+
+  /**
+   * Get the cached statement for the SQL, preparing it if needed.
+   */
+  PreparedStatement prepare(String sql) throws SQLException {
+    PreparedStatement statement = statements.get(sql);
+    if (null == statement) {
+      statement = connection.prepareStatement(sql,
+          ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+      statements.put(sql, statement);
+    }
+    return statement;
+  }
+
+  /**
+   * Get the cached insert statement for the SQL, preparing it to return
+   * generated keys if needed.
+   */
+  PreparedStatement prepareInsert(String sql) throws SQLException {
+    PreparedStatement statement = statements.get(sql);
+    if (null == statement) {
+      statement = connection.prepareStatement(sql,
+          Statement.RETURN_GENERATED_KEYS);
+      statements.put(sql, statement);
+    }
+    return statement;
+  }
+
+  /**
+   * Close the prepared statements and, if the session owns it, the
+   * connection.
+   */
+  void close(boolean closeConnection) throws SQLException {
+    SQLException error = null;
+    for (PreparedStatement statement : statements.values()) {
+      try {
+        statement.close();
+      } catch (SQLException e) {
+        error = null == error ? e : error;
+      }
+    }
+    statements.clear();
+    if (closeConnection) {
+      connection.close();
+    }
+    if (null != error) {
+      throw error;
+    }
+  }
+}
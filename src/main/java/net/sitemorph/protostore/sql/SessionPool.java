@@ -0,0 +1,163 @@
+package net.sitemorph.protostore.sql;
+
+import net.sitemorph.protostore.CrudException;
+
+import com.google.protobuf.Message;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+/**
+ * Source of sessions for a SQL store.
+ *
+ * A store built with a single connection uses one pinned session for every
+ * operation, which is not safe for concurrent use, as before. A store built
+ * with a data source borrows a connection per session so concurrent
+ * operations each use their own connection and statements. The connection
+ * is closed, returning it to the data source, as soon as the session is given
+ * back so a store holds no connections between operations. Statements are
+ * prepared again on each borrowed connection, which a pooling data source
+ * or driver statement cache turns into a lookup.
+ */
+final class SessionPool {
+
+  private final Session pinned;
+  private final DataSource dataSource;
+  private volatile boolean closed = false;
+
+  SessionPool(Connection connection) {
+    this.pinned = new Session(connection);
+    this.dataSource = null;
+  }
+
+  SessionPool(DataSource dataSource) {
+    this.pinned = null;
+    this.dataSource = dataSource;
+  }
+
+  /**
+   * Take a session for an operation, which must be given back with release
+   * or discard.
+   */
+  Session acquire() throws CrudException {
+    if (null != pinned) {
+      return pinned;
+    }
+    if (closed) {
+      throw new CrudException("Store has been closed");
+    }
+    try {
+      return new Session(dataSource.getConnection());
+    } catch (SQLException e) {
+      throw new CrudException("Error borrowing a store connection", e);
+    }
+  }
+
+  /**
+   * Give back a session after a successful operation, returning a borrowed
+   * connection to the data source.
+   */
+  void release(Session session) {
+    if (pinned == session) {
+      return;
+    }
+    closeQuietly(session);
+  }
+
+  /**
+   * Give back a session after a SQL error. A pinned session stays in use
+   * and a borrowed connection is returned to the data source, which decides
+   * whether it can be reused.
+   */
+  void discard(Session session) {
+    release(session);
+  }
+
+  /**
+   * Work run with a session.
+   */
+  interface SessionWork<R> {
+    R run(Session session) throws SQLException, CrudException;
+  }
+
+  /**
+   * Run work with a session, giving the session back when it is done.
+   *
+   * @param error message for a SQL exception raised by the work
+   * @param work to run
+   * @return the work result
+   * @throws CrudException wrapping any SQL exception
+   */
+  <R> R run(String error, SessionWork<R> work) throws CrudException {
+    Session session = acquire();
+    R result;
+    try {
+      result = work.run(session);
+    } catch (SQLException e) {
+      discard(session);
+      throw new CrudException(error, e);
+    } catch (CrudException | RuntimeException e) {
+      release(session);
+      throw e;
+    }
+    release(session);
+    return result;
+  }
+
+  /**
+   * Execute a query with a session which is held by the returned iterator
+   * until it is closed or runs out of rows.
+   *
+   * @param error message for a SQL exception
+   * @param reader plan for the selected columns
+   * @param fetchSize for the statement or zero for the driver default
+   * @param prepare work returning the statement ready to execute
+   * @return iterator over the query rows
+   * @throws CrudException wrapping any SQL exception
+   */
+  <T extends Message> DbFieldIterator<T> query(String error, RowReader reader,
+      int fetchSize, SessionWork<PreparedStatement> prepare)
+      throws CrudException {
+    Session session = acquire();
+    try {
+      PreparedStatement statement = prepare.run(session);
+      if (0 != fetchSize) {
+        statement.setFetchSize(fetchSize);
+      }
+      return new DbFieldIterator<>(reader, statement.executeQuery(), this,
+          session);
+    } catch (SQLException e) {
+      discard(session);
+      throw new CrudException(error, e);
+    } catch (CrudException | RuntimeException e) {
+      release(session);
+      throw e;
+    }
+  }
+
+  void close() throws CrudException {
+    if (null != pinned) {
+      try {
+        // the pinned connection belongs to the caller so only the statements
+        // are closed
+        pinned.close(false);
+      } catch (SQLException e) {
+        throw new CrudException("Error closing store statements", e);
+      }
+      return;
+    }
+    // borrowed connections are returned as each operation ends
+    closed = true;
+  }
+
+  private static void closeQuietly(Session session) {
+    try {
+      session.close(true);
+    } catch (SQLException e) {
+      // the connection is being given up so there is nothing more to do
+    }
+  }
+}
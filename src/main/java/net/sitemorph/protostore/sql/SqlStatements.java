@@ -0,0 +1,386 @@
+package net.sitemorph.protostore.sql;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.FieldMask;
+import com.google.protobuf.Message;
+import net.sitemorph.protostore.CrudException;
+import net.sitemorph.protostore.MessageVectorException;
+import net.sitemorph.protostore.RangeQuery;
+import net.sitemorph.protostore.SortOrder;
+import net.sitemorph.protostore.helper.FieldMasks;
+import net.sitemorph.protostore.ram.InMemoryStore;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SQL generation and parameter binding shared by the SQL stores.
+ */
+final class SqlStatements {
+
+  private SqlStatements() {}
+
+  /**
+   * Get the SQL selecting the fields by a given field.
+   *
+   * @param fields list
+   * @param match field or null if match all
+   * @return select SQL
+   */
+  static String getSelectSql(String tableName, List<FieldDescriptor> fields,
+      FieldDescriptor match, FieldDescriptor sortField, SortOrder order) {
+    StringBuilder read = new StringBuilder();
+    read.append("SELECT ");
+    for (FieldDescriptor field : fields) {
+      read.append(field.getName())
+          .append(", ");
+    }
+    read.delete(read.length() - 2, read.length());
+    read.append(" FROM ")
+        .append(tableName);
+    if (null != match) {
+      read.append(" WHERE ")
+          .append(match.getName())
+          .append(" = ?");
+    }
+    if (null != sortField) {
+      read.append(" ORDER BY ")
+          .append(sortField.getName());
+    }
+    if (null != order) {
+      read.append(" ");
+      switch (order) {
+        case ASCENDING : read.append("ASC");
+          break;
+        case DESCENDING: read.append("DESC");
+      }
+    }
+    //log.debug("Created read statement {}", read.toString());
+    return read.toString();
+  }
+
+  /**
+   * Get a prepared range read over the sort field, creating and caching the
+   * statement for the range shape if needed, with the match, bound and limit
+   * parameters set.
+   *
+   * @param session to prepare the statement on
+   * @param match field or null if match all
+   * @param matchValue value for the match field
+   * @param order configured sort order used if the range has no direction
+   * @return prepared statement ready to execute
+   * @throws SQLException on underlying SQL exception
+   */
+  static PreparedStatement getRangeStatement(Session session,
+      String tableName, List<FieldDescriptor> fields, FieldDescriptor match,
+      Object matchValue, FieldDescriptor sortField, SortOrder order,
+      RangeQuery range) throws SQLException, CrudException {
+    StringBuilder read = getSelect(tableName, fields);
+    String join = " WHERE ";
+    if (null != match) {
+      read.append(join)
+          .append(match.getName())
+          .append(" = ?");
+      join = " AND ";
+    }
+    if (range.hasLowerBound() && range.hasUpperBound()) {
+      read.append(join)
+          .append(sortField.getName())
+          .append(" BETWEEN ? AND ?");
+    } else if (range.hasLowerBound()) {
+      read.append(join)
+          .append(sortField.getName())
+          .append(" >= ?");
+    } else if (range.hasUpperBound()) {
+      read.append(join)
+          .append(sortField.getName())
+          .append(" <= ?");
+    }
+    read.append(" ORDER BY ")
+        .append(sortField.getName());
+    SortOrder direction = null == range.getDirection() ? order :
+        range.getDirection();
+    if (SortOrder.DESCENDING == direction) {
+      read.append(" DESC");
+    } else {
+      read.append(" ASC");
+    }
+    if (range.hasLimit()) {
+      read.append(" LIMIT ?");
+    }
+    PreparedStatement statement = session.prepare(read.toString());
+    int offset = 1;
+    if (null != match) {
+      setStatementValue(statement, offset++, match, matchValue);
+    }
+    if (range.hasLowerBound()) {
+      setStatementValue(statement, offset++, sortField, range.getLowerBound());
+    }
+    if (range.hasUpperBound()) {
+      setStatementValue(statement, offset++, sortField, range.getUpperBound());
+    }
+    if (range.hasLimit()) {
+      statement.setInt(offset, range.getLimit());
+    }
+    return statement;
+  }
+
+  /**
+   * Get a prepared keyset page read, creating and caching the statement for
+   * the page shape if needed, with parameters set. Pages are ordered by the
+   * sort field then the unique key field so that the key values of the last
+   * message of a page identify where the next page starts.
+   *
+   * @param session to prepare the statement on
+   * @param match field or null if match all
+   * @param matchValue value for the match field
+   * @param sortField field to order by, which may be the key field
+   * @param key unique field used to order messages with equal sort values
+   * @param after partial message with the sort and key values of the last
+   *     message read or null for the first page
+   * @param limit maximum rows to read
+   * @return prepared statement ready to execute
+   * @throws SQLException on underlying SQL exception
+   */
+  static PreparedStatement getPageStatement(Session session,
+      String tableName, List<FieldDescriptor> fields, FieldDescriptor match,
+      Object matchValue, FieldDescriptor sortField, SortOrder order,
+      FieldDescriptor key, Message after, int limit)
+      throws SQLException, CrudException {
+    StringBuilder read = getSelect(tableName, fields);
+    boolean keyOnly = sortField.equals(key);
+    String join = " WHERE ";
+    if (null != match) {
+      read.append(join)
+          .append(match.getName())
+          .append(" = ?");
+      join = " AND ";
+    }
+    String seek = SortOrder.DESCENDING == order ? " < ?" : " > ?";
+    if (null != after && keyOnly) {
+      read.append(join)
+          .append(key.getName())
+          .append(seek);
+    } else if (null != after) {
+      read.append(join)
+          .append("(")
+          .append(sortField.getName())
+          .append(seek)
+          .append(" OR (")
+          .append(sortField.getName())
+          .append(" = ? AND ")
+          .append(key.getName())
+          .append(" > ?))");
+    }
+    read.append(" ORDER BY ")
+        .append(sortField.getName())
+        .append(SortOrder.DESCENDING == order ? " DESC" : " ASC");
+    if (!keyOnly) {
+      read.append(", ")
+          .append(key.getName())
+          .append(" ASC");
+    }
+    read.append(" LIMIT ?");
+    PreparedStatement statement = session.prepare(read.toString());
+    int offset = 1;
+    if (null != match) {
+      setStatementValue(statement, offset++, match, matchValue);
+    }
+    if (null != after && !keyOnly) {
+      Object sortValue = after.getField(sortField);
+      setStatementValue(statement, offset++, sortField, sortValue);
+      setStatementValue(statement, offset++, sortField, sortValue);
+    }
+    if (null != after) {
+      setStatementValue(statement, offset++, key, after.getField(key));
+    }
+    statement.setInt(offset, limit);
+    return statement;
+  }
+
+  /**
+   * Get a prepared read of a subset of the columns selected by a match field,
+   * creating and caching the statement for the projection if needed, with
+   * the match parameter set.
+   *
+   * @param session to prepare the statement on
+   * @param fields to select
+   * @param match field or null if match all
+   * @param matchValue value for the match field
+   * @param sortField field to order by or null for no order
+   * @param order of the sort field
+   * @return prepared statement ready to execute
+   * @throws SQLException on underlying SQL exception
+   */
+  static PreparedStatement getProjectionStatement(Session session,
+      String tableName, List<FieldDescriptor> fields, FieldDescriptor match,
+      Object matchValue, FieldDescriptor sortField, SortOrder order)
+      throws SQLException, CrudException {
+    StringBuilder read = getSelect(tableName, fields);
+    if (null != match) {
+      read.append(" WHERE ")
+          .append(match.getName())
+          .append(" = ?");
+    }
+    if (null != sortField) {
+      read.append(" ORDER BY ")
+          .append(sortField.getName())
+          .append(SortOrder.DESCENDING == order ? " DESC" : " ASC");
+    }
+    PreparedStatement statement = session.prepare(read.toString());
+    if (null != match) {
+      setStatementValue(statement, 1, match, matchValue);
+    }
+    return statement;
+  }
+
+  private static StringBuilder getSelect(String tableName,
+      List<FieldDescriptor> fields) {
+    StringBuilder read = new StringBuilder();
+    read.append("SELECT ");
+    for (FieldDescriptor field : fields) {
+      read.append(field.getName())
+          .append(", ");
+    }
+    read.delete(read.length() - 2, read.length());
+    read.append(" FROM ")
+        .append(tableName);
+    return read;
+  }
+
+  /**
+   * Resolve the columns a patch writes: the masked fields other than the key
+   * and vector, which are always handled by the patch itself.
+   *
+   * @throws CrudException if the mask selects no writable field
+   */
+  static List<FieldDescriptor> getPatchFields(Descriptor descriptor,
+      FieldMask mask, FieldDescriptor key, FieldDescriptor vectorField)
+      throws CrudException {
+    List<FieldDescriptor> fields = new ArrayList<>(
+        FieldMasks.getFields(descriptor, mask));
+    fields.remove(key);
+    fields.remove(vectorField);
+    if (fields.isEmpty()) {
+      throw new CrudException("Field mask selects no fields to update");
+    }
+    return fields;
+  }
+
+  /**
+   * Get a cached update statement setting only the given columns, and the
+   * vector if there is one, for the row with a key and, when versioned, the
+   * prior vector.
+   *
+   * @param session to prepare the statement on
+   * @param fields to set
+   * @param key field identifying the row
+   * @param vectorField or null if the store has no vector
+   * @return prepared statement to bind with bindPatch
+   * @throws SQLException on underlying SQL exception
+   */
+  static PreparedStatement getPatchStatement(Session session,
+      String tableName, List<FieldDescriptor> fields, FieldDescriptor key,
+      FieldDescriptor vectorField) throws SQLException {
+    StringBuilder update = new StringBuilder();
+    update.append("UPDATE ")
+        .append(tableName)
+        .append(" SET ");
+    for (FieldDescriptor field : fields) {
+      update.append(field.getName())
+          .append(" = ?, ");
+    }
+    if (null != vectorField) {
+      update.append(vectorField.getName())
+          .append(" = ?, ");
+    }
+    update.delete(update.length() - 2, update.length());
+    update.append(" WHERE ")
+        .append(key.getName())
+        .append(" = ?");
+    if (null != vectorField) {
+      update.append(" AND ")
+          .append(vectorField.getName())
+          .append(" = ?");
+    }
+    return session.prepare(update.toString());
+  }
+
+  /**
+   * Bind a patch statement, moving the builder vector on to the new value.
+   */
+  static void bindPatch(PreparedStatement statement, Message.Builder builder,
+      List<FieldDescriptor> fields, FieldDescriptor key,
+      FieldDescriptor vectorField) throws SQLException, CrudException {
+    int offset = 1;
+    for (FieldDescriptor field : fields) {
+      Object value = builder.hasField(field) ? builder.getField(field) : null;
+      setStatementValue(statement, offset++, field, value);
+    }
+    long vector = 0;
+    if (null != vectorField) {
+      if (!builder.hasField(vectorField)) {
+        throw new MessageVectorException("Update is missing clock vector");
+      }
+      vector = (Long) builder.getField(vectorField);
+      InMemoryStore.updateVector(builder, vectorField);
+      statement.setLong(offset++, (Long) builder.getField(vectorField));
+    }
+    setStatementValue(statement, offset++, key, builder.getField(key));
+    if (null != vectorField) {
+      statement.setLong(offset, vector);
+    }
+  }
+
+  static void setStatementValue(PreparedStatement statement, int index,
+      FieldDescriptor field, Object value) throws SQLException, CrudException {
+    if (null == value) {
+      statement.setNull(index, index);
+      return;
+    }
+    switch (field.getType()) {
+      case INT64:
+      case SINT64:
+      case SFIXED64:
+      case UINT64:
+      case FIXED64:
+        statement.setLong(index, (Long) value);
+        break;
+      case SINT32:
+      case UINT32:
+      case SFIXED32:
+      case FIXED32:
+      case INT32:
+        statement.setInt(index, (Integer) value);
+        break;
+      case BOOL:
+        statement.setBoolean(index, (Boolean) value);
+        break;
+      case STRING:
+        statement.setString(index, (String) value);
+        break;
+      case ENUM:
+        //statement.setString(index, ((Enum)value).name());
+        statement.setString(index,
+            ((Descriptors.EnumValueDescriptor)value).getName());
+        break;
+      case FLOAT:
+        statement.setFloat(index, (Float)value);
+        break;
+      case DOUBLE:
+        statement.setDouble(index, (Double)value);
+        break;
+      case BYTES :
+        statement.setBytes(index, ((ByteString) value).toByteArray());
+        break;
+      default:
+        throw new CrudException("Index could not be generated for " +
+            "unsupported type: " + field.getType().name());
+    }
+  }
+}
@@ -2,27 +2,40 @@ package net.sitemorph.protostore.sql;
 
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.FieldMask;
 import com.google.protobuf.Message;
 import net.sitemorph.protostore.CrudException;
 import net.sitemorph.protostore.CrudIterator;
+import net.sitemorph.protostore.CrudPage;
 import net.sitemorph.protostore.CrudStore;
 import net.sitemorph.protostore.MessageNotFoundException;
 import net.sitemorph.protostore.MessageVectorException;
+import net.sitemorph.protostore.RangeQuery;
 import net.sitemorph.protostore.SortOrder;
+import net.sitemorph.protostore.UrnGenerator;
+import net.sitemorph.protostore.helper.BatchResults;
+import net.sitemorph.protostore.helper.CrudStreams;
+import net.sitemorph.protostore.helper.FieldMasks;
+import net.sitemorph.protostore.helper.IteratorAdaptorException;
+import net.sitemorph.protostore.helper.PageTokens;
+import net.sitemorph.protostore.helper.RandomUrnGenerator;
 import net.sitemorph.protostore.ram.InMemoryStore;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
-import static net.sitemorph.protostore.sql.AutoIdCrudStore.setStatementValue;
+import javax.sql.DataSource;
+
+import static net.sitemorph.protostore.sql.SqlStatements.setStatementValue;
 
 /**
  * URN keyed data store using columnar storage like the field iterator but uses
@@ -37,21 +50,33 @@ import static net.sitemorph.protostore.sql.AutoIdCrudStore.setStatementValue;
 public class UrnCrudStore<T extends Message> implements CrudStore<T> {
 
   private Connection connection;
-  private PreparedStatement create, readAll, update, delete, readUrn;
+  private DataSource dataSource;
+  private SessionPool sessions;
+  private String createSql, readAllSql, updateSql, deleteSql, readUrnSql;
   private String tableName;
   private Message.Builder prototype;
+  private RowReader rowReader;
+  private boolean directFieldAccess = false;
+  private int fetchSize = 0;
+  private Aggregates aggregates;
+  private final Map<List<FieldDescriptor>, RowReader> projections =
+      new ConcurrentHashMap<>();
   private FieldDescriptor urnField;
-  private Map<FieldDescriptor, PreparedStatement> readIndexes;
+  private Map<FieldDescriptor, String> readIndexes;
   private SortOrder sortDirection;
   private FieldDescriptor sortField;
   private FieldDescriptor vectorField;
+  private UrnGenerator urnGenerator = new RandomUrnGenerator();
 
   private UrnCrudStore() {
     readIndexes = new HashMap<>();
   }
 
   /**
-   * Create a urn based object with a defined urn field.
+   * Create a urn based object with a defined urn field. The urn generator is
+   * trusted to allocate a new urn so create is a single insert. A constraint
+   * violation, including the very unlikely urn collision, is reported to the
+   * caller rather than retried.
    *
    * @param builder to build from
    * @return the constructed object with urn set.
@@ -59,34 +84,62 @@ public class UrnCrudStore<T extends Message> implements CrudStore<T> {
    */
   @Override
   public T create(T.Builder builder) throws CrudException {
-    try {
-      // set the uuid
-      UUID uid = UUID.randomUUID();
-      CrudIterator<T> prior = read(prototype.clone()
-          .setField(urnField, uid.toString()));
-      while (prior.hasNext()) {
-        prior.close();
-        uid = UUID.randomUUID();
-        prior = read(prototype.clone()
-            .setField(urnField, uid.toString()));
+    return sessions.run("Error creating new urn crud object", session -> {
+      PreparedStatement create = session.prepare(createSql);
+      builder.setField(urnField, urnGenerator.generate());
+      bindCreate(create, builder);
+      create.executeUpdate();
+      @SuppressWarnings("unchecked")
+      T built = (T) builder.build();
+      return built;
+    });
+  }
+
+  /**
+   * Create all messages in a single JDBC batch. Batch creates don't read for
+   * prior urns so a urn collision is reported as a failed row by the primary
+   * key constraint.
+   *
+   * @param builders to build from
+   * @return the constructed objects with urn set.
+   * @throws CrudException upon storage error
+   */
+  @Override
+  public List<T> createAll(Collection<? extends Message.Builder> builders)
+      throws CrudException {
+    return sessions.run("Error creating urn crud object batch", session -> {
+      PreparedStatement create = session.prepare(createSql);
+      create.clearBatch();
+      for (Message.Builder builder : builders) {
+        builder.setField(urnField, urnGenerator.generate());
+        bindCreate(create, builder);
+        create.addBatch();
       }
-      prior.close();
-      builder.setField(urnField, uid.toString());
-      if (null != vectorField) {
-        InMemoryStore.setInitialVector(builder, vectorField);
+      BatchExecution batch = BatchExecution.execute(create);
+      BatchResults<T> results = new BatchResults<>();
+      int row = 0;
+      for (Message.Builder builder : builders) {
+        if (batch.applied(row)) {
+          @SuppressWarnings("unchecked")
+          T built = (T) builder.build();
+          results.add(built);
+        } else {
+          results.fail(batch.failure(row, "Create"));
+        }
+        row++;
       }
+      return results.get("Create");
+    });
+  }
 
-      Descriptor descriptor = prototype.getDescriptorForType();
-      List<FieldDescriptor> fields = descriptor.getFields();
-      int offset = 1;
-      for (FieldDescriptor field : fields) {
-        setStatementValue(create, offset++, field,builder.getField(field));
-      }
-      create.executeUpdate();
-      //noinspection unchecked
-      return (T) builder.build();
-    } catch (SQLException e) {
-      throw new CrudException("Error creating new urn crud object", e);
+  private void bindCreate(PreparedStatement create, Message.Builder builder)
+      throws SQLException, CrudException {
+    if (null != vectorField) {
+      InMemoryStore.setInitialVector(builder, vectorField);
+    }
+    int offset = 1;
+    for (FieldDescriptor field : prototype.getDescriptorForType().getFields()) {
+      setStatementValue(create, offset++, field, builder.getField(field));
     }
   }
 
@@ -102,27 +155,140 @@ public class UrnCrudStore<T extends Message> implements CrudStore<T> {
    */
   @Override
   public CrudIterator<T> read(Message.Builder builder) throws CrudException {
-    try {
-      if (builder.hasField(urnField)) {
-        readUrn.setString(1, builder.getField(urnField).toString());
-        return new DbFieldIterator<>(builder, readUrn.executeQuery());
+    FieldDescriptor match = getMatchField(builder);
+    String sql = null == match ? readAllSql :
+        match.equals(urnField) ? readUrnSql : readIndexes.get(match);
+    return sessions.query("Error reading urn fields records.", rowReader,
+        fetchSize, session -> {
+      PreparedStatement statement = session.prepare(sql);
+      if (urnField.equals(match)) {
+        statement.setString(1, builder.getField(urnField).toString());
+      } else if (null != match) {
+        setStatementValue(statement, 1, match, builder.getField(match));
       }
+      return statement;
+    });
+  }
 
-      for (Map.Entry<FieldDescriptor, PreparedStatement> index :
-          readIndexes.entrySet()) {
-        FieldDescriptor field = index.getKey();
-        PreparedStatement statement = index.getValue();
-        if (builder.hasField(field)) {
-          Object value = builder.getField(field);
-          setStatementValue(statement, 1, field, value);
-          return new DbFieldIterator<>(builder, statement.executeQuery());
-        }
+  /**
+   * Read messages in sort order as for read(builder) with a narrower cached
+   * statement selecting only the masked columns.
+   */
+  @Override
+  public CrudIterator<T> read(Message.Builder builder, FieldMask mask)
+      throws CrudException {
+    List<FieldDescriptor> fields = FieldMasks.getFields(
+        prototype.getDescriptorForType(), mask);
+    RowReader reader = projections.computeIfAbsent(fields,
+        key -> new RowReader(prototype, key, directFieldAccess));
+    FieldDescriptor match = getMatchField(builder);
+    return sessions.query("Error reading projection caused by SQL exception",
+        reader, fetchSize, session -> SqlStatements.getProjectionStatement(
+            session, tableName, fields, match,
+            null == match ? null : builder.getField(match), sortField,
+            sortDirection));
+  }
+
+  /**
+   * Read a range of sort field values using the same urn or secondary index
+   * selection as read. Stores without a sort order range over the urn.
+   *
+   * @param builder with either urn or secondary index set.
+   * @param range of sort field values to read
+   * @return iterator over results.
+   * @throws CrudException upon storage error reading
+   */
+  @Override
+  public CrudIterator<T> read(Message.Builder builder, RangeQuery range)
+      throws CrudException {
+    FieldDescriptor match = getMatchField(builder);
+    return sessions.query("Error reading urn field record range.", rowReader,
+        fetchSize, session -> SqlStatements.getRangeStatement(session,
+            tableName, prototype.getDescriptorForType().getFields(), match,
+            null == match ? null : builder.getField(match),
+            null == sortField ? urnField : sortField,
+            null == sortDirection ? SortOrder.ASCENDING : sortDirection,
+            range));
+  }
+
+  /**
+   * Read a page of results in sort order then urn order, seeking past the
+   * sort field and urn values held in the page token.
+   *
+   * @param builder with either urn or secondary index set.
+   * @param pageToken from the previous page or null for the first page
+   * @param pageSize maximum number of messages in the page
+   * @return the page of messages
+   * @throws CrudException upon storage error reading
+   */
+  @Override
+  public CrudPage<T> readPage(Message.Builder builder, String pageToken,
+      int pageSize) throws CrudException {
+    if (0 >= pageSize) {
+      throw new IllegalArgumentException("Page size must be positive");
+    }
+    FieldDescriptor match = getMatchField(builder);
+    FieldDescriptor sort = null == sortField ? urnField : sortField;
+    Message after = null == pageToken ? null :
+        PageTokens.decode(prototype, pageToken);
+    CrudIterator<T> items = sessions.query("Error reading urn field record " +
+        "page.", rowReader, fetchSize, session ->
+        SqlStatements.getPageStatement(session, tableName,
+            prototype.getDescriptorForType().getFields(), match,
+            null == match ? null : builder.getField(match), sort,
+            null == sortDirection ? SortOrder.ASCENDING : sortDirection,
+            urnField, after, pageSize + 1));
+    return PageTokens.readPage(items, pageSize, sort, urnField);
+  }
+
+  private FieldDescriptor getMatchField(Message.Builder builder) {
+    if (builder.hasField(urnField)) {
+      return urnField;
+    }
+    for (FieldDescriptor field : readIndexes.keySet()) {
+      if (builder.hasField(field)) {
+        return field;
       }
+    }
+    return null;
+  }
 
-      return new DbFieldIterator<>(builder, readAll.executeQuery());
-    } catch (SQLException e) {
-      throw new CrudException("Error reading urn fields records.", e);
+  @Override
+  public long count(Message.Builder builder) throws CrudException {
+    FieldDescriptor match = getMatchField(builder);
+    return aggregates.count(match,
+        null == match ? null : builder.getField(match));
+  }
+
+  @Override
+  public Map<Object, Long> countBy(Message.Builder builder, String indexField)
+      throws CrudException {
+    FieldDescriptor group = null;
+    for (FieldDescriptor field : readIndexes.keySet()) {
+      if (field.getName().equals(indexField)) {
+        group = field;
+      }
+    }
+    if (null == group) {
+      throw new CrudException("Can't count by unindexed field: " + indexField);
     }
+    FieldDescriptor match = getMatchField(builder);
+    return aggregates.countBy(group, match,
+        null == match ? null : builder.getField(match));
+  }
+
+  @Override
+  public Object min(Message.Builder builder) throws CrudException {
+    FieldDescriptor match = getMatchField(builder);
+    return aggregates.extreme("MIN", null == sortField ? urnField : sortField,
+        match, null == match ? null : builder.getField(match));
+  }
+
+  @Override
+  public Object max(Message.Builder builder) throws CrudException {
+    FieldDescriptor match = getMatchField(builder);
+    return aggregates.extreme("MAX", null == sortField ? urnField : sortField,
+        match, null == match ? null : builder.getField(match));
   }
 
   @Override
@@ -145,42 +311,125 @@ public class UrnCrudStore<T extends Message> implements CrudStore<T> {
     }
 
     // write the update
-    try {
-      Descriptor descriptor = builder.getDescriptorForType();
-      List<FieldDescriptor> fields = descriptor.getFields();
-      int offset = 1;
-      long vector = -1;
-      for (FieldDescriptor field : fields) {
-        if (field.equals(urnField)) {
-          // skip the urn field as it is set in the where
-          continue;
-        }
-        if (field.equals(vectorField)) {
-          // update the vector
-          vector = (Long) builder.getField(vectorField);
-          InMemoryStore.updateVector(builder, vectorField);
-        }
-        Object value = builder.hasField(field)? builder.getField(field) : null;
-        setStatementValue(update, offset++, field, value);
-      }
+    int updated = sessions.run("Error updating urn crud value", session -> {
+      PreparedStatement update = session.prepare(updateSql);
+      bindUpdate(update, builder);
+      return update.executeUpdate();
+    });
+    // test and set using update where old value to new value
+    if (1 != updated) {
+      throw new MessageVectorException(
+          builder.getDescriptorForType().getName() + " : " +
+          builder.getField(urnField) + " not updated to to vector mismatch");
+
+    }
+    @SuppressWarnings("unchecked")
+    T built = (T) builder.build();
+    return built;
+  }
 
-      update.setString(offset++,  builder.getField(urnField).toString());
+  /**
+   * Update only the masked columns of the message with the builder urn using
+   * a cached statement per mask, with the same vector test and set as update.
+   *
+   * @param builder with the urn, vector and masked field values set
+   * @param mask of the fields to write
+   * @return the builder values with the updated vector
+   * @throws CrudException upon storage error or vector mismatch
+   */
+  @Override
+  public T update(Message.Builder builder, FieldMask mask)
+      throws CrudException {
+    if (!builder.hasField(urnField)) {
+      throw new CrudException("Can't update message due to missing urn");
+    }
+    List<FieldDescriptor> fields = SqlStatements.getPatchFields(
+        builder.getDescriptorForType(), mask, urnField, vectorField);
+    int updated = sessions.run("Error updating urn crud value", session -> {
+      PreparedStatement statement = SqlStatements.getPatchStatement(session,
+          tableName, fields, urnField, vectorField);
+      SqlStatements.bindPatch(statement, builder, fields, urnField,
+          vectorField);
+      return statement.executeUpdate();
+    });
+    if (1 != updated) {
+      throw new MessageVectorException(
+          builder.getDescriptorForType().getName() + " : " +
+          builder.getField(urnField) + " not updated to to vector mismatch");
+    }
+    @SuppressWarnings("unchecked")
+    T built = (T) builder.buildPartial();
+    return built;
+  }
 
-      if (null != vectorField) {
-        update.setLong(offset, vector);
+  /**
+   * Update all messages in a single JDBC batch using the same urn and vector
+   * test and set as update for each row.
+   *
+   * @param builders with updates applied
+   * @return updated messages
+   * @throws CrudException upon storage error
+   */
+  @Override
+  public List<T> updateAll(Collection<? extends Message.Builder> builders)
+      throws CrudException {
+    for (Message.Builder builder : builders) {
+      if (!builder.hasField(urnField)) {
+        throw new CrudException("Can't update message due to missing urn");
+      }
+    }
+    return sessions.run("Error updating urn crud value batch", session -> {
+      PreparedStatement update = session.prepare(updateSql);
+      update.clearBatch();
+      for (Message.Builder builder : builders) {
+        bindUpdate(update, builder);
+        update.addBatch();
+      }
+      BatchExecution batch = BatchExecution.execute(update);
+      BatchResults<T> results = new BatchResults<>();
+      int row = 0;
+      for (Message.Builder builder : builders) {
+        if (batch.applied(row)) {
+          @SuppressWarnings("unchecked")
+          T built = (T) builder.build();
+          results.add(built);
+        } else {
+          results.fail(batch.failure(row, "Update"));
+        }
+        row++;
       }
-      int updated = update.executeUpdate();
-      // test and set using update where old value to new value
-      if (1 != updated) {
-        throw new MessageVectorException(
-            builder.getDescriptorForType().getName() + " : " +
-            builder.getField(urnField) + " not updated to to vector mismatch");
+      return results.get("Update");
+    });
+  }
 
+  /**
+   * Set the update parameters for a builder, moving the builder vector on to
+   * the next value and setting the prior value as the where condition.
+   */
+  private void bindUpdate(PreparedStatement update, Message.Builder builder)
+      throws SQLException, CrudException {
+    Descriptor descriptor = builder.getDescriptorForType();
+    List<FieldDescriptor> fields = descriptor.getFields();
+    int offset = 1;
+    long vector = -1;
+    for (FieldDescriptor field : fields) {
+      if (field.equals(urnField)) {
+        // skip the urn field as it is set in the where
+        continue;
+      }
+      if (field.equals(vectorField)) {
+        // update the vector
+        vector = (Long) builder.getField(vectorField);
+        InMemoryStore.updateVector(builder, vectorField);
       }
-      //noinspection unchecked
-      return (T) builder.build();
-    } catch (SQLException e) {
-      throw new CrudException("Error updating urn crud value", e);
+      Object value = builder.hasField(field)? builder.getField(field) : null;
+      setStatementValue(update, offset++, field, value);
+    }
+
+    update.setString(offset++,  builder.getField(urnField).toString());
+
+    if (null != vectorField) {
+      update.setLong(offset, vector);
     }
   }
 
@@ -189,47 +438,80 @@ public class UrnCrudStore<T extends Message> implements CrudStore<T> {
     if(!message.hasField(urnField)) {
       throw new CrudException("Can't update message due to missing urn");
     }
-    try {
-      delete.setString(1, message.getField(urnField).toString());
-      if (null != vectorField) {
-        Long vector = (Long)message.getField(vectorField);
-        delete.setLong(2, vector);
+    int updated = sessions.run("Error deleting urn crud value", session -> {
+      PreparedStatement delete = session.prepare(deleteSql);
+      bindDelete(delete, message);
+      return delete.executeUpdate();
+    });
+    if (1 != updated) {
+      throw new MessageVectorException("Delete failed due to missing or " +
+          "vector clock mismatch");
+    }
+  }
+
+  /**
+   * Delete all messages in a single JDBC batch using the same urn and vector
+   * test as delete for each row.
+   *
+   * @param messages to delete
+   * @throws CrudException upon storage error
+   */
+  @Override
+  public void deleteAll(Collection<T> messages) throws CrudException {
+    for (T message : messages) {
+      if (!message.hasField(urnField)) {
+        throw new CrudException("Can't delete message due to missing urn");
       }
-      int updated = delete.executeUpdate();
-      if (1 != updated) {
-        throw new MessageVectorException("Delete failed due to missing or " +
-            "vector clock mismatch");
+    }
+    sessions.run("Error deleting urn crud value batch", session -> {
+      PreparedStatement delete = session.prepare(deleteSql);
+      delete.clearBatch();
+      for (T message : messages) {
+        bindDelete(delete, message);
+        delete.addBatch();
       }
-    } catch (SQLException e) {
-      throw new CrudException("Error deleting urn crud value: " +
-          e.getMessage(), e);
+      BatchExecution batch = BatchExecution.execute(delete);
+      BatchResults<T> results = new BatchResults<>();
+      int row = 0;
+      for (T message : messages) {
+        if (batch.applied(row)) {
+          results.add(message);
+        } else {
+          results.fail(batch.failure(row, "Delete"));
+        }
+        row++;
+      }
+      results.get("Delete");
+      return null;
+    });
+  }
+
+  private void bindDelete(PreparedStatement delete, T message)
+      throws SQLException {
+    delete.setString(1, message.getField(urnField).toString());
+    if (null != vectorField) {
+      Long vector = (Long)message.getField(vectorField);
+      delete.setLong(2, vector);
     }
   }
 
   @Override
   public void close() throws CrudException {
-    try {
-      create.close();
-      readAll.close();
-      update.close();
-      delete.close();
-      for (Map.Entry<FieldDescriptor, PreparedStatement> index :
-          readIndexes.entrySet()) {
-        index.getValue().close();
-      }
-    } catch (SQLException e) {
-      throw new CrudException("Error closing Db Urn Field Store", e);
-    }
+    sessions.close();
   }
 
   @Override
   public boolean supportsStreams() {
-    return false;
+    return true;
   }
 
   @Override
   public Stream<T> stream(Message.Builder builder) {
-    throw new UnsupportedOperationException();
+    try {
+      return CrudStreams.stream(read(builder), null != sortField);
+    } catch (CrudException e) {
+      throw new IteratorAdaptorException("Error opening stream", e);
+    }
   }
 
   public static class Builder<F extends Message> {
@@ -251,13 +533,15 @@ public class UrnCrudStore<T extends Message> implements CrudStore<T> {
       if (null == result.urnField) {
         throw new CrudException("Required urn field not set");
       }
-      if (null == result.connection) {
+      if (null == result.connection && null == result.dataSource) {
         throw new CrudException("Connection null. Please provide a connector");
       }
 
 
       Descriptor descriptor = result.prototype.getDescriptorForType();
       List<FieldDescriptor> fields = descriptor.getFields();
+      result.rowReader = new RowReader(result.prototype, fields,
+          result.directFieldAccess);
       for (String index : indexes) {
         boolean found = false;
         for (FieldDescriptor field : fields) {
@@ -288,86 +572,103 @@ public class UrnCrudStore<T extends Message> implements CrudStore<T> {
       }
       create.delete(create.length() - 2, create.length());
       create.append(")");
-      try {
-        result.create = result.connection.prepareStatement(create.toString());
-      } catch (SQLException e) {
-        throw new CrudException("Error generating create of Urn Store", e);
-      }
+      result.createSql = create.toString();
 
       // Read all
-      try {
-        result.readAll = AutoIdCrudStore.getStatement(result.connection,
-            result.tableName, fields, null, result.sortField,
-            result.sortDirection);
-        // read indexes
-        for (FieldDescriptor field : fields) {
-          if (indexes.contains(field.getName())) {
-            result.readIndexes.put(field,
-                AutoIdCrudStore.getStatement(result.connection,
-                    result.tableName, fields, field, result.sortField,
-                    result.sortDirection));
-          }
+      result.readAllSql = SqlStatements.getSelectSql(result.tableName,
+          fields, null, result.sortField, result.sortDirection);
+      // read indexes
+      for (FieldDescriptor field : fields) {
+        if (indexes.contains(field.getName())) {
+          result.readIndexes.put(field,
+              SqlStatements.getSelectSql(result.tableName, fields, field,
+                  result.sortField, result.sortDirection));
         }
-        result.readUrn = AutoIdCrudStore.getStatement(result.connection,
-            result.tableName, fields, result.urnField, result.sortField,
-            result.sortDirection);
-      } catch (SQLException e) {
-        throw new CrudException("Error generating read of Urn Store", e);
       }
+      result.readUrnSql = SqlStatements.getSelectSql(result.tableName,
+          fields, result.urnField, result.sortField, result.sortDirection);
 
       // Update
-      try {
-        StringBuilder update = new StringBuilder();
-        update.append("UPDATE ")
-            .append(result.tableName)
-            .append(" SET ");
-        for (FieldDescriptor field : fields) {
-          if (field.equals(result.urnField)) {
-            continue;
-          }
-          update.append(field.getName())
-              .append(" = ?, ");
+      StringBuilder update = new StringBuilder();
+      update.append("UPDATE ")
+          .append(result.tableName)
+          .append(" SET ");
+      for (FieldDescriptor field : fields) {
+        if (field.equals(result.urnField)) {
+          continue;
         }
-        update.delete(update.length() - 2, update.length());
-        update.append(" WHERE ")
-            .append(result.urnField.getName())
+        update.append(field.getName())
+            .append(" = ?, ");
+      }
+      update.delete(update.length() - 2, update.length());
+      update.append(" WHERE ")
+          .append(result.urnField.getName())
+          .append(" = ?");
+      if (null != result.vectorField) {
+        update.append(" AND ")
+            .append(result.vectorField.getName())
             .append(" = ?");
-        if (null != result.vectorField) {
-          update.append(" AND ")
-              .append(result.vectorField.getName())
-              .append(" = ?");
-        }
-        result.update = result.connection.prepareStatement(update.toString());
-      } catch (SQLException e) {
-        throw new CrudException("Error creating update for urn store", e);
       }
+      result.updateSql = update.toString();
 
       // Delete
-      try {
-        StringBuilder delete = new StringBuilder();
-        delete.append("DELETE FROM ")
-            .append(result.tableName)
-            .append(" WHERE ")
-            .append(result.urnField.getName())
+      StringBuilder delete = new StringBuilder();
+      delete.append("DELETE FROM ")
+          .append(result.tableName)
+          .append(" WHERE ")
+          .append(result.urnField.getName())
+          .append(" = ?");
+      if (null != result.vectorField) {
+        delete.append(" AND ")
+            .append(result.vectorField.getName())
             .append(" = ?");
-        if (null != result.vectorField) {
-          delete.append(" AND ")
-              .append(result.vectorField.getName())
-              .append(" = ?");
-        }
-        result.delete = result.connection.prepareStatement(delete.toString());
-      } catch (SQLException e) {
-        throw new CrudException("Error creating delete for urn store", e);
       }
+      result.deleteSql = delete.toString();
+
+      result.sessions = null != result.connection ?
+          new SessionPool(result.connection) :
+          new SessionPool(result.dataSource);
+      result.aggregates = new Aggregates(result.sessions, result.tableName,
+          result.prototype);
+      // prepare the statements up front so a bad mapping fails the build
+      result.sessions.run("Error preparing statements for Urn Store",
+          session -> {
+        session.prepare(result.createSql);
+        session.prepare(result.readAllSql);
+        for (String read : result.readIndexes.values()) {
+          session.prepare(read);
+        }
+        session.prepare(result.readUrnSql);
+        session.prepare(result.updateSql);
+        session.prepare(result.deleteSql);
+        return null;
+      });
 
       return result;
     }
 
+    /**
+     * Set a single connection for the store to use for every operation. A
+     * store on one connection must not be used concurrently.
+     */
     public Builder<F> setConnection(Connection connection) {
       result.connection = connection;
       return this;
     }
 
+    /**
+     * Set a data source for the store to borrow a connection from for each
+     * operation, so concurrent callers each use their own connection. The
+     * connection goes back to the data source when the operation ends, so
+     * statement reuse is left to the pool or driver statement cache. Read
+     * iterators hold their connection until they are closed or run out of
+     * rows.
+     */
+    public Builder<F> setDataSource(DataSource dataSource) {
+      result.dataSource = dataSource;
+      return this;
+    }
+
     public Builder<F> setTableName(String tableName) {
       result.tableName = tableName;
       return this;
@@ -414,6 +715,53 @@ public class UrnCrudStore<T extends Message> implements CrudStore<T> {
       return this;
     }
 
+    /**
+     * Set the urn allocation strategy. Defaults to random UUID urns.
+     */
+    public Builder<F> setUrnGenerator(UrnGenerator urnGenerator) {
+      result.urnGenerator = urnGenerator;
+      return this;
+    }
+
+    /**
+     * Set rows to be read through the generated builder setters rather than
+     * protobuf reflection where the message type allows it. Off by default.
+     */
+    public Builder<F> setDirectFieldAccess(boolean directFieldAccess) {
+      result.directFieldAccess = directFieldAccess;
+      return this;
+    }
+
+    /**
+     * Set the number of rows the driver should fetch per round trip for
+     * reads. Zero, the default, leaves the driver default which for MySQL
+     * Connector/J buffers the whole result set in memory.
+     */
+    public Builder<F> setFetchSize(int fetchSize) {
+      if (0 > fetchSize) {
+        throw new IllegalArgumentException("Fetch size can't be negative");
+      }
+      result.fetchSize = fetchSize;
+      return this;
+    }
+
+    /**
+     * Set reads to stream rows one at a time from the server, keeping memory
+     * constant for large scans. This uses the Connector/J streaming fetch
+     * size of Integer.MIN_VALUE on forward only, read only statements. While
+     * a streamed iterator is open no other statement can be run on the
+     * connection, so close iterators before writing. Drivers with cursor
+     * based fetching should use a positive fetch size instead.
+     */
+    public Builder<F> setStreaming(boolean streaming) {
+      if (streaming) {
+        result.fetchSize = Integer.MIN_VALUE;
+      } else if (Integer.MIN_VALUE == result.fetchSize) {
+        result.fetchSize = 0;
+      }
+      return this;
+    }
+
     public Builder<F> addIndexField(String indexField) {
       indexes.add(indexField);
       return this;
@@ -0,0 +1,266 @@
+package net.sitemorph.protostore;
+
+import com.google.protobuf.FieldMask;
+import net.sitemorph.protostore.sql.AutoIdCrudStore;
+import net.sitemorph.queue.Tasks.Item;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests for the auto ID SQL store against an in memory H2 database.
+ */
+public class AutoIdCrudStoreTest {
+
+  private Connection connection;
+
+  @BeforeMethod
+  public void createTable() throws SQLException {
+    connection = DriverManager.getConnection("jdbc:h2:mem:auto" +
+        System.nanoTime() + ";MODE=MySQL");
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE Item (id BIGINT AUTO_INCREMENT " +
+          "PRIMARY KEY, name VARCHAR(64), vector BIGINT)");
+    }
+  }
+
+  @AfterMethod
+  public void closeConnection() throws SQLException {
+    connection.close();
+  }
+
+  private AutoIdCrudStore<Item> getStore() throws CrudException {
+    return new AutoIdCrudStore.Builder<Item>()
+        .setConnection(connection)
+        .setTableName("Item")
+        .setBuilderPrototype(Item.newBuilder())
+        .setAutoIdColumn("id")
+        .setVectorField("vector")
+        .addIndexField("name")
+        .build();
+  }
+
+  private List<Item> createItems(CrudStore<Item> store, int count)
+      throws CrudException {
+    List<Item> items = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      items.add(store.create(Item.newBuilder()
+          .setName(0 == i % 2 ? "even" : "odd")));
+    }
+    return items;
+  }
+
+  private static List<Long> ids(CrudIterator<Item> items)
+      throws CrudException {
+    List<Long> result = new ArrayList<>();
+    while (items.hasNext()) {
+      result.add(items.next().getId());
+    }
+    items.close();
+    return result;
+  }
+
+  private static List<Long> ids(List<Item> items) {
+    return items.stream().map(Item::getId).collect(Collectors.toList());
+  }
+
+  @Test
+  public void testRangeOfIds() throws CrudException {
+    AutoIdCrudStore<Item> store = getStore();
+    List<Long> created = ids(createItems(store, 6));
+    assertEquals(ids(store.read(Item.newBuilder(), new RangeQuery.Builder()
+        .setLowerBound(created.get(1))
+        .setUpperBound(created.get(3))
+        .build())), created.subList(1, 4), "Expected the inclusive id range");
+    assertEquals(ids(store.read(Item.newBuilder().setName("even"),
+        new RangeQuery.Builder()
+            .setLowerBound(created.get(1))
+            .setDirection(SortOrder.DESCENDING)
+            .setLimit(1)
+            .build())), created.subList(4, 5),
+        "Expected the highest even id");
+  }
+
+  @Test
+  public void testPagesOfIds() throws CrudException {
+    AutoIdCrudStore<Item> store = getStore();
+    List<Item> items = createItems(store, 5);
+    List<Item> read = new ArrayList<>();
+    String token = null;
+    do {
+      CrudPage<Item> page = store.readPage(Item.newBuilder(), token, 2);
+      read.addAll(page.getMessages());
+      token = page.getNextPageToken();
+    } while (null != token);
+    assertEquals(read, items, "Expected every item in id order");
+    CrudPage<Item> odd = store.readPage(Item.newBuilder().setName("odd"),
+        null, 2);
+    List<Item> expected = new ArrayList<>();
+    expected.add(items.get(1));
+    expected.add(items.get(3));
+    assertEquals(odd.getMessages(), expected, "Expected the odd items");
+    assertFalse(odd.hasNextPage(), "Expected the odd items in one page");
+  }
+
+  @Test
+  public void testStaleVectorRejected() throws CrudException {
+    AutoIdCrudStore<Item> store = getStore();
+    Item stale = store.create(Item.newBuilder().setName("first"));
+    Item current = store.update(stale.toBuilder().setName("second"));
+    assertEquals(current.getVector(), stale.getVector() + 1,
+        "Expected the update to move the vector on");
+    try {
+      store.update(stale.toBuilder().setName("lost"));
+      fail("Expected a stale update to be rejected");
+    } catch (MessageVectorException e) {
+      // expected
+    }
+    try {
+      store.delete(stale);
+      fail("Expected a stale delete to be rejected");
+    } catch (MessageVectorException e) {
+      // expected
+    }
+    assertEquals(store.readOne(Item.newBuilder().setId(current.getId()))
+        .getName(), "second", "Expected the current version to be kept");
+  }
+
+  @Test
+  public void testPatchUpdate() throws CrudException {
+    AutoIdCrudStore<Item> store = getStore();
+    Item created = store.create(Item.newBuilder().setName("original"));
+    FieldMask name = FieldMask.newBuilder().addPaths("name").build();
+    Item patched = store.update(created.toBuilder().setName("patched"), name);
+    assertEquals(patched.getVector(), created.getVector() + 1,
+        "Expected the patch to move the vector on");
+    assertEquals(store.readOne(Item.newBuilder().setId(created.getId())),
+        patched, "Expected the patched item");
+    try {
+      store.update(created.toBuilder().setName("late"), name);
+      fail("Expected a stale patch to fail");
+    } catch (MessageVectorException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testMissingIdNotFound() throws CrudException {
+    AutoIdCrudStore<Item> store = getStore();
+    Item item = store.create(Item.newBuilder().setName("gone"));
+    store.delete(item);
+    try {
+      store.update(item.toBuilder().setName("back"));
+      fail("Expected an update of a missing id to fail");
+    } catch (MessageNotFoundException e) {
+      // expected
+    }
+    try {
+      store.delete(item);
+      fail("Expected a delete of a missing id to fail");
+    } catch (MessageNotFoundException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testBatchResultsInRowOrder() throws CrudException {
+    AutoIdCrudStore<Item> store = getStore();
+    List<Item.Builder> builders = new ArrayList<>();
+    for (String name : new String[] {"a", "b", "c"}) {
+      builders.add(Item.newBuilder().setName(name));
+    }
+    List<Item> created = store.createAll(builders);
+    assertEquals(created.size(), 3, "Expected a result per row");
+    for (int i = 0; i < created.size(); i++) {
+      assertEquals(created.get(i).getName(), builders.get(i).getName(),
+          "Expected results in row order");
+      assertEquals(store.readOne(Item.newBuilder()
+          .setId(created.get(i).getId())), created.get(i),
+          "Expected the generated id of the row");
+    }
+    Item stale = created.get(1);
+    store.update(stale.toBuilder().setName("moved"));
+    List<Item.Builder> updates = new ArrayList<>();
+    for (Item item : created) {
+      updates.add(item.toBuilder().setName(item.getName() + "2"));
+    }
+    try {
+      store.updateAll(updates);
+      fail("Expected the stale row to fail");
+    } catch (CrudBatchException e) {
+      assertEquals(e.getFailures().keySet(), Collections.singleton(1),
+          "Expected only the stale row to fail");
+      assertTrue(e.getFailures().get(1) instanceof MessageVectorException,
+          "Expected a vector failure");
+      assertEquals(((Item) e.getResults().get(0)).getName(), "a2",
+          "Expected the first row result");
+      assertNull(e.getResults().get(1), "Expected no stale row result");
+      assertEquals(((Item) e.getResults().get(2)).getName(), "c2",
+          "Expected the last row result");
+    }
+    assertEquals(store.readOne(Item.newBuilder().setId(stale.getId()))
+        .getName(), "moved", "Expected the stale row left alone");
+    List<Item> deletes = new ArrayList<>();
+    deletes.add(store.readOne(Item.newBuilder().setId(created.get(0).getId())));
+    deletes.add(stale);
+    try {
+      store.deleteAll(deletes);
+      fail("Expected the stale delete to fail");
+    } catch (CrudBatchException e) {
+      assertEquals(e.getFailures().keySet(), Collections.singleton(1),
+          "Expected only the stale delete to fail");
+      assertTrue(e.getFailures().get(1) instanceof MessageVectorException,
+          "Expected a vector failure");
+    }
+    assertEquals(store.count(Item.newBuilder()), 2L,
+        "Expected only the current delete applied");
+  }
+
+  @Test
+  public void testBatchConstraintFailure() throws Exception {
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("ALTER TABLE Item ADD CONSTRAINT uniqueName " +
+          "UNIQUE (name)");
+    }
+    AutoIdCrudStore<Item> store = getStore();
+    List<Item.Builder> builders = new ArrayList<>();
+    for (String name : new String[] {"a", "a", "b"}) {
+      builders.add(Item.newBuilder().setName(name));
+    }
+    try {
+      store.createAll(builders);
+      fail("Expected the duplicate row to fail");
+    } catch (CrudBatchException e) {
+      assertEquals(e.getFailures().keySet(), Collections.singleton(1),
+          "Expected only the duplicate row to fail");
+      assertFalse(e.getFailures().get(1) instanceof MessageVectorException,
+          "Expected a constraint failure");
+      assertNull(e.getResults().get(1), "Expected no duplicate row result");
+      for (int row : new int[] {0, 2}) {
+        Item item = (Item) e.getResults().get(row);
+        assertEquals(item.getName(), builders.get(row).getName(),
+            "Expected the row result in place");
+        assertEquals(store.readOne(Item.newBuilder().setId(item.getId())),
+            item, "Expected the generated id of the row");
+      }
+    }
+    assertEquals(store.count(Item.newBuilder()), 2L,
+        "Expected the other rows written");
+  }
+}
@@ -0,0 +1,203 @@
+package net.sitemorph.protostore;
+
+import com.google.protobuf.FieldMask;
+import net.sitemorph.protostore.helper.CachingCrudStore;
+import net.sitemorph.protostore.helper.PreloadUrnCrudStore;
+import net.sitemorph.protostore.ram.InMemoryStore;
+import net.sitemorph.queue.Tasks.Task;
+
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests for the read through cache store wrapping an in memory store.
+ */
+public class CachingCrudStoreTest {
+
+  private CrudStore<Task> getMemoryStore() throws CrudException {
+    return new InMemoryStore.Builder<Task>()
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .addIndexField("path")
+        .setSortOrder("runTime", SortOrder.ASCENDING)
+        .setVectorField("vector")
+        .build();
+  }
+
+  @Test
+  public void testUrnReadsEvictLeastRecentlyUsed() throws CrudException {
+    CrudStore<Task> memoryStore = getMemoryStore();
+    List<Task> tasks = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      tasks.add(memoryStore.create(Task.newBuilder()
+          .setPath("/task")
+          .setRunTime(i)));
+    }
+    CachingCrudStore<Task> cacheStore = new CachingCrudStore.Builder<Task>()
+        .setStore(memoryStore)
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .setMaximumWeight(2)
+        .build();
+    for (Task task : tasks.subList(0, 2)) {
+      assertEquals(cacheStore.readOne(Task.newBuilder()
+          .setUrn(task.getUrn())), task, "Expected the stored task");
+    }
+    // touch the first so the second is the least recently used
+    cacheStore.readOne(Task.newBuilder().setUrn(tasks.get(0).getUrn()));
+    cacheStore.readOne(Task.newBuilder().setUrn(tasks.get(2).getUrn()));
+    assertEquals(cacheStore.getHitCount(), 1, "Expected one hit");
+    assertEquals(cacheStore.getMissCount(), 3, "Expected three misses");
+    assertEquals(cacheStore.getEvictionCount(), 1, "Expected one eviction");
+    cacheStore.readOne(Task.newBuilder().setUrn(tasks.get(0).getUrn()));
+    assertEquals(cacheStore.getHitCount(), 2, "Expected the first cached");
+    cacheStore.readOne(Task.newBuilder().setUrn(tasks.get(1).getUrn()));
+    assertEquals(cacheStore.getMissCount(), 4, "Expected the second evicted");
+  }
+
+  @Test
+  public void testWritesInvalidate() throws CrudException {
+    CrudStore<Task> memoryStore = getMemoryStore();
+    Task task = memoryStore.create(Task.newBuilder()
+        .setPath("/before")
+        .setRunTime(1));
+    CachingCrudStore<Task> cacheStore = new CachingCrudStore.Builder<Task>()
+        .setStore(memoryStore)
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .addIndexField("path")
+        .build();
+    CrudIterator<Task> before = cacheStore.read(Task.newBuilder()
+        .setPath("/before"));
+    assertTrue(before.hasNext(), "Expected the task under its path");
+    Task updated = cacheStore.update(task.toBuilder().setPath("/after"));
+    assertFalse(cacheStore.read(Task.newBuilder().setPath("/before"))
+        .hasNext(), "Expected the old path result to be invalidated");
+    assertEquals(cacheStore.readOne(Task.newBuilder().setUrn(task.getUrn())),
+        updated, "Expected the updated task");
+    Task created = cacheStore.create(Task.newBuilder()
+        .setPath("/after")
+        .setRunTime(2));
+    int count = 0;
+    CrudIterator<Task> after = cacheStore.read(Task.newBuilder()
+        .setPath("/after"));
+    while (after.hasNext()) {
+      after.next();
+      count++;
+    }
+    assertEquals(count, 2, "Expected the created task in the path result");
+    cacheStore.delete(created);
+    assertFalse(cacheStore.read(Task.newBuilder().setUrn(created.getUrn()))
+        .hasNext(), "Expected the deleted task to be gone");
+  }
+
+  @Test
+  public void testWritesKeepUnrelatedIndexResults() throws CrudException {
+    CrudStore<Task> memoryStore = getMemoryStore();
+    Task kept = memoryStore.create(Task.newBuilder()
+        .setPath("/kept")
+        .setRunTime(1));
+    Task moved = memoryStore.create(Task.newBuilder()
+        .setPath("/before")
+        .setRunTime(2));
+    CachingCrudStore<Task> cacheStore = new CachingCrudStore.Builder<Task>()
+        .setStore(memoryStore)
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .addIndexField("path")
+        .build();
+    cacheStore.readOne(Task.newBuilder().setPath("/kept"));
+    cacheStore.readOne(Task.newBuilder().setPath("/before"));
+    assertEquals(cacheStore.getSize(), 2, "Expected both path results");
+    // the moved task is not cached by urn so its prior path comes from the
+    // results it was loaded into
+    moved = cacheStore.update(moved.toBuilder().setPath("/after"));
+    assertEquals(cacheStore.getSize(), 1, "Expected only the kept result");
+    assertFalse(cacheStore.read(Task.newBuilder().setPath("/before"))
+        .hasNext(), "Expected the prior path result to be invalidated");
+    long hits = cacheStore.getHitCount();
+    assertEquals(cacheStore.readOne(Task.newBuilder().setPath("/kept")), kept,
+        "Expected the kept task");
+    assertEquals(cacheStore.getHitCount(), hits + 1,
+        "Expected the unrelated result to stay cached");
+    cacheStore.readOne(Task.newBuilder().setPath("/after"));
+    cacheStore.update(moved.toBuilder().setPath("/patched"),
+        FieldMask.newBuilder().addPaths("path").build());
+    assertFalse(cacheStore.read(Task.newBuilder().setPath("/after"))
+        .hasNext(), "Expected the patched task gone from its prior path");
+    assertEquals(cacheStore.readOne(Task.newBuilder().setPath("/patched"))
+        .getUrn(), moved.getUrn(), "Expected the patched task");
+    hits = cacheStore.getHitCount();
+    cacheStore.readOne(Task.newBuilder().setPath("/kept"));
+    assertEquals(cacheStore.getHitCount(), hits + 1,
+        "Expected the patch to keep the unrelated result");
+  }
+
+  @Test
+  public void testCreateAllAndInvalidateKeepUnrelatedResults()
+      throws CrudException {
+    CrudStore<Task> memoryStore = getMemoryStore();
+    Task kept = memoryStore.create(Task.newBuilder()
+        .setPath("/kept")
+        .setRunTime(1));
+    Task changed = memoryStore.create(Task.newBuilder()
+        .setPath("/before")
+        .setRunTime(2));
+    CachingCrudStore<Task> cacheStore = new CachingCrudStore.Builder<Task>()
+        .setStore(memoryStore)
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .addIndexField("path")
+        .build();
+    cacheStore.readOne(Task.newBuilder().setPath("/kept"));
+    cacheStore.readOne(Task.newBuilder().setPath("/before"));
+    cacheStore.readOne(Task.newBuilder().setUrn(changed.getUrn()));
+    List<Task.Builder> builders = new ArrayList<>();
+    builders.add(Task.newBuilder().setPath("/before").setRunTime(3));
+    cacheStore.createAll(builders);
+    assertEquals(cacheStore.getSize(), 2,
+        "Expected only the result of the created path dropped");
+    List<Task> before = new ArrayList<>();
+    CrudIterator<Task> items = cacheStore.read(Task.newBuilder()
+        .setPath("/before"));
+    while (items.hasNext()) {
+      before.add(items.next());
+    }
+    assertEquals(before.size(), 2, "Expected the created task in the result");
+    // changed by another writer so invalidated by urn
+    memoryStore.update(changed.toBuilder().setPath("/after"));
+    cacheStore.invalidate(changed.getUrn());
+    assertEquals(cacheStore.getSize(), 1, "Expected only the kept result");
+    long hits = cacheStore.getHitCount();
+    assertEquals(cacheStore.readOne(Task.newBuilder().setPath("/kept")), kept,
+        "Expected the kept task");
+    assertEquals(cacheStore.getHitCount(), hits + 1,
+        "Expected the unrelated result to stay cached");
+    assertEquals(cacheStore.readOne(Task.newBuilder().setPath("/before"))
+        .getRunTime(), 3, "Expected only the created task under the path");
+  }
+
+  @Test
+  public void testMissingUrnThrownByRead() throws CrudException {
+    // the preload store throws from read for an unknown urn
+    CrudStore<Task> preloadStore = new PreloadUrnCrudStore.Builder<Task>()
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .setWriteStore(getMemoryStore())
+        .build();
+    CachingCrudStore<Task> cacheStore = new CachingCrudStore.Builder<Task>()
+        .setStore(preloadStore)
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .build();
+    assertFalse(cacheStore.read(Task.newBuilder().setUrn("missing"))
+        .hasNext(), "Expected no message for an unknown urn");
+    assertEquals(cacheStore.getSize(), 0, "Didn't expect a cached miss");
+  }
+}
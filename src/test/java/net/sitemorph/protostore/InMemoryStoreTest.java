@@ -1,11 +1,16 @@
 package net.sitemorph.protostore;
 
+import com.google.protobuf.FieldMask;
+import net.sitemorph.protostore.helper.*;
 import net.sitemorph.protostore.ram.*;
 import net.sitemorph.queue.Tasks.*;
 import org.testng.annotations.*;
 import org.testng.collections.*;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
 
 import static org.testng.Assert.*;
 
@@ -72,6 +77,33 @@ public class InMemoryStoreTest {
     assertEquals(count, 2, "Expected two home paths");
   }
 
+  @Test
+  public void testSecondaryIndexSortedAfterUpdate() throws CrudException {
+    CrudStore<Task> store = buildStore();
+    Task late = store.create(Task.newBuilder()
+      .setPath(HOME_PATH)
+      .setRunTime(5));
+    Task moved = store.create(Task.newBuilder()
+      .setPath(TEST_PATH)
+      .setRunTime(9));
+    store.create(Task.newBuilder()
+      .setPath(HOME_PATH)
+      .setRunTime(7));
+    store.update(moved.toBuilder()
+      .setPath(HOME_PATH)
+      .setRunTime(1));
+    store.delete(late);
+    CrudIterator<Task> tasks = store.read(Task.newBuilder()
+      .setPath(HOME_PATH));
+    List<Long> expected = Lists.newArrayList(1L, 7L);
+    for (Long expect : expected) {
+      assertEquals(Long.valueOf(tasks.next().getRunTime()), expect);
+    }
+    assertFalse(tasks.hasNext(), "Deleted task should leave the index");
+    assertFalse(store.read(Task.newBuilder().setPath(TEST_PATH)).hasNext(),
+        "Moved task should leave its old index value");
+  }
+
   @Test(expectedExceptions = MessageVectorException.class)
   public void testVectorClockError() throws CrudException {
     CrudStore<Task> store = buildStore();
@@ -108,6 +140,191 @@ public class InMemoryStoreTest {
     assertFalse(tasks.hasNext());
   }
 
+  @Test
+  public void testUpdateRepositions() throws CrudException {
+    CrudStore<Task> store = buildStore();
+    Task first = store.create(Task.newBuilder().setPath(TEST_PATH).setRunTime(1));
+    Task second = store.create(Task.newBuilder().setPath(TEST_PATH).setRunTime(2));
+    Task third = store.create(Task.newBuilder().setPath(TEST_PATH).setRunTime(3));
+    // same sort value so stays in place
+    second = store.update(second.toBuilder().setData("claimed"));
+    // moved to the end
+    first = store.update(first.toBuilder().setRunTime(4));
+    List<Task> expected = Lists.newArrayList(second, third, first);
+    CrudIterator<Task> tasks = store.read(Task.newBuilder());
+    for (Task expect : expected) {
+      assertEquals(tasks.next(), expect);
+    }
+    assertFalse(tasks.hasNext());
+    tasks = store.read(Task.newBuilder().setPath(TEST_PATH));
+    for (Task expect : expected) {
+      assertEquals(tasks.next(), expect);
+    }
+    assertFalse(tasks.hasNext());
+  }
+
+  @Test
+  public void testRangeRead() throws CrudException {
+    CrudStore<Task> store = buildStore();
+    for (long runTime = 0; runTime < 2000; runTime++) {
+      store.create(Task.newBuilder()
+          .setPath(0 == runTime % 2 ? HOME_PATH : TEST_PATH)
+          .setRunTime(runTime));
+    }
+    assertRunTimes(store.read(Task.newBuilder(), new RangeQuery.Builder()
+        .setLowerBound(10L)
+        .setUpperBound(13L)
+        .build()), 10L, 11L, 12L, 13L);
+    assertRunTimes(store.read(Task.newBuilder(), new RangeQuery.Builder()
+        .setUpperBound(1500L)
+        .setLimit(3)
+        .build()), 0L, 1L, 2L);
+    assertRunTimes(store.read(Task.newBuilder(), new RangeQuery.Builder()
+        .setUpperBound(1500L)
+        .setLimit(3)
+        .setDirection(SortOrder.DESCENDING)
+        .build()), 1500L, 1499L, 1498L);
+    assertRunTimes(store.read(Task.newBuilder().setPath(TEST_PATH),
+        new RangeQuery.Builder()
+            .setLowerBound(1994L)
+            .build()), 1995L, 1997L, 1999L);
+    assertRunTimes(store.read(Task.newBuilder(), new RangeQuery.Builder()
+        .setLowerBound(5000L)
+        .build()));
+  }
+
+  @Test
+  public void testDescendingStoreRangeRead() throws CrudException {
+    CrudStore<Task> store = new InMemoryStore.Builder<Task>()
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .setSortOrder("runTime", SortOrder.DESCENDING)
+        .setVectorField("vector")
+        .build();
+    for (long runTime = 0; runTime < 10; runTime++) {
+      store.create(Task.newBuilder().setPath(TEST_PATH).setRunTime(runTime));
+    }
+    assertRunTimes(store.read(Task.newBuilder(), new RangeQuery.Builder()
+        .setLowerBound(3L)
+        .setUpperBound(6L)
+        .setLimit(3)
+        .build()), 6L, 5L, 4L);
+    assertRunTimes(store.read(Task.newBuilder(), new RangeQuery.Builder()
+        .setLowerBound(3L)
+        .setUpperBound(6L)
+        .setDirection(SortOrder.ASCENDING)
+        .build()), 3L, 4L, 5L, 6L);
+  }
+
+  @Test
+  public void testPagedRead() throws CrudException {
+    CrudStore<Task> store = buildStore();
+    Set<String> created = new HashSet<>();
+    for (int i = 0; i < 250; i++) {
+      // plenty of equal run times so pages split within sort value ties
+      created.add(store.create(Task.newBuilder()
+          .setPath(0 == i % 5 ? HOME_PATH : TEST_PATH)
+          .setRunTime(i % 7)).getUrn());
+    }
+    Set<String> read = new HashSet<>();
+    String token = null;
+    long last = Long.MIN_VALUE;
+    int pages = 0;
+    do {
+      CrudPage<Task> page = store.readPage(Task.newBuilder(), token, 40);
+      for (Task task : page.getMessages()) {
+        assertTrue(last <= task.getRunTime(), "Expected pages in sort order");
+        last = task.getRunTime();
+        assertTrue(read.add(task.getUrn()), "Task read twice " + task);
+      }
+      token = page.getNextPageToken();
+      pages++;
+    } while (null != token);
+    assertEquals(read, created, "Expected every task read once");
+    assertEquals(pages, 7, "Expected 250 tasks in pages of 40");
+
+    CrudPage<Task> home = store.readPage(Task.newBuilder().setPath(HOME_PATH),
+        null, 50);
+    assertEquals(home.getMessages().size(), 50);
+    assertFalse(home.hasNextPage(), "Expected all home tasks in one page");
+  }
+
+  private static void assertRunTimes(CrudIterator<Task> tasks, Long... runTimes)
+      throws CrudException {
+    for (Long runTime : runTimes) {
+      assertTrue(tasks.hasNext(), "Expected run time " + runTime);
+      assertEquals(Long.valueOf(tasks.next().getRunTime()), runTime);
+    }
+    assertFalse(tasks.hasNext(), "Expected no more tasks");
+  }
+
+  @Test
+  public void testBatchOperations() throws CrudException {
+    CrudStore<Task> store = buildStore();
+    List<Task> created = store.createAll(Lists.newArrayList(
+        Task.newBuilder().setPath(TEST_PATH).setRunTime(3),
+        Task.newBuilder().setPath(TEST_PATH).setRunTime(1),
+        Task.newBuilder().setPath(TEST_PATH).setRunTime(2)));
+    assertEquals(created.size(), 3);
+    assertRunTimes(store.read(Task.newBuilder()), 1L, 2L, 3L);
+
+    Task stale = created.get(1);
+    store.update(stale.toBuilder().setData("moved on"));
+    try {
+      store.updateAll(Lists.newArrayList(
+          created.get(0).toBuilder().setRunTime(4),
+          stale.toBuilder().setRunTime(5),
+          created.get(2).toBuilder().setRunTime(6)));
+      fail("Expected the stale row to fail");
+    } catch (CrudBatchException e) {
+      assertEquals(e.getFailures().keySet(), Collections.singleton(1));
+      assertTrue(e.getFailures().get(1) instanceof MessageVectorException);
+      assertNull(e.getResults().get(1), "Failed row should have no result");
+      assertEquals(((Task) e.getResults().get(0)).getRunTime(), 4);
+    }
+    assertRunTimes(store.read(Task.newBuilder()), 1L, 4L, 6L);
+
+    store.deleteAll(Lists.newArrayList(store.read(Task.newBuilder()
+        .setUrn(stale.getUrn())).next()));
+    assertRunTimes(store.read(Task.newBuilder()), 4L, 6L);
+  }
+
+  @Test
+  public void testUrnGeneratorCollisionRetried() throws CrudException {
+    final Iterator<String> urns = Lists.newArrayList("first", "first",
+        "second").iterator();
+    CrudStore<Task> store = new InMemoryStore.Builder<Task>()
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .setVectorField("vector")
+        .setUrnGenerator(urns::next)
+        .build();
+    assertEquals(store.create(Task.newBuilder().setPath(TEST_PATH)
+        .setRunTime(1)).getUrn(), "first");
+    assertEquals(store.create(Task.newBuilder().setPath(TEST_PATH)
+        .setRunTime(2)).getUrn(), "second");
+  }
+
+  @Test
+  public void testTimeOrderedUrns() throws CrudException {
+    // with no sort order the store is in urn order
+    CrudStore<Task> store = new InMemoryStore.Builder<Task>()
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .setVectorField("vector")
+        .setUrnGenerator(new TimeOrderedUrnGenerator())
+        .build();
+    for (long runTime = 0; runTime < 5000; runTime++) {
+      store.create(Task.newBuilder().setPath(TEST_PATH).setRunTime(runTime));
+    }
+    CrudIterator<Task> tasks = store.read(Task.newBuilder());
+    for (long runTime = 0; runTime < 5000; runTime++) {
+      Task task = tasks.next();
+      assertEquals(task.getRunTime(), runTime, "Expected creation order");
+      assertEquals(UUID.fromString(task.getUrn()).version(), 7);
+    }
+  }
+
   @Test
   public void testStreamItems() throws CrudException {
     CrudStore<Task> store = buildStore();
@@ -120,6 +337,229 @@ public class InMemoryStoreTest {
     assertEquals(count, 3);
   }
 
+  @Test
+  public void testUrnReadUpdateDelete() throws CrudException {
+    CrudStore<Task> store = buildStore();
+    Task first = store.create(Task.newBuilder().setPath(TEST_PATH).setRunTime(3));
+    Task second = store.create(Task.newBuilder().setPath(TEST_PATH).setRunTime(3));
+    assertEquals(store.readOne(Task.newBuilder().setUrn(second.getUrn())),
+        second, "Expected urn read to find the second task");
+
+    Task updated = store.update(first.toBuilder().setRunTime(5));
+    assertEquals(store.readOne(Task.newBuilder().setUrn(first.getUrn())),
+        updated, "Expected urn read to find the updated task");
+
+    store.delete(second);
+    CrudIterator<Task> missing = store.read(Task.newBuilder()
+        .setUrn(second.getUrn()));
+    assertFalse(missing.hasNext(), "Deleted task should not be read by urn");
+    CrudIterator<Task> all = store.read(Task.newBuilder());
+    assertEquals(all.next(), updated, "Expected only the updated task");
+    assertFalse(all.hasNext(), "Expected a single remaining task");
+  }
+
+  @Test(expectedExceptions = MessageNotFoundException.class)
+  public void testDeleteMissing() throws CrudException {
+    CrudStore<Task> store = buildStore();
+    Task task = store.create(Task.newBuilder().setPath(TEST_PATH).setRunTime(1));
+    store.delete(task);
+    store.delete(task);
+  }
+
+  @Test
+  public void testLargeStoreStaysSorted() throws CrudException {
+    CrudStore<Task> store = buildStore();
+    Random random = new Random(42);
+    List<Task> created = new ArrayList<>();
+    for (int i = 0; i < 3000; i++) {
+      created.add(store.create(Task.newBuilder()
+          .setPath(0 == i % 2 ? HOME_PATH : TEST_PATH)
+          .setRunTime(random.nextInt(500))));
+    }
+    for (int i = 0; i < created.size(); i += 3) {
+      store.delete(created.get(i));
+    }
+    CrudIterator<Task> tasks = store.read(Task.newBuilder());
+    int count = 0;
+    long last = Long.MIN_VALUE;
+    while (tasks.hasNext()) {
+      long runTime = tasks.next().getRunTime();
+      assertTrue(last <= runTime, "Expected ascending run times");
+      last = runTime;
+      count++;
+    }
+    assertEquals(count, 2000, "Expected a third of the tasks deleted");
+  }
+
+  @Test
+  public void testParallelStream() throws CrudException {
+    CrudStore<Task> store = buildStore();
+    long expected = 0;
+    for (int i = 0; i < 5000; i++) {
+      store.create(Task.newBuilder()
+          .setPath(0 == i % 2 ? HOME_PATH : TEST_PATH)
+          .setRunTime(i));
+      expected += i;
+    }
+    Spliterator<Task> split = store.stream(Task.newBuilder()).spliterator();
+    assertTrue(split.hasCharacteristics(Spliterator.SUBSIZED),
+        "Expected a sized spliterator");
+    assertEquals(split.getExactSizeIfKnown(), 5000L);
+    assertEquals(store.stream(Task.newBuilder())
+        .parallel()
+        .mapToLong(Task::getRunTime)
+        .sum(), expected, "Expected every task summed once");
+    List<Long> home = store.stream(Task.newBuilder().setPath(HOME_PATH))
+        .parallel()
+        .map(Task::getRunTime)
+        .collect(Collectors.toList());
+    assertEquals(home.size(), 2500);
+    for (int i = 0; i < home.size(); i++) {
+      assertEquals(home.get(i).longValue(), 2L * i, "Expected store order");
+    }
+  }
+
+  @Test
+  public void testAggregates() throws CrudException {
+    CrudStore<Task> store = buildStore();
+    assertEquals(store.count(Task.newBuilder()), 0L);
+    assertNull(store.min(Task.newBuilder()), "Expected no minimum");
+    for (int i = 0; i < 10; i++) {
+      store.create(Task.newBuilder()
+          .setPath(3 > i ? HOME_PATH : TEST_PATH)
+          .setRunTime(100 + i));
+    }
+    assertEquals(store.count(Task.newBuilder()), 10L);
+    assertEquals(store.count(Task.newBuilder().setPath(HOME_PATH)), 3L);
+    Map<Object, Long> byPath = store.countBy(Task.newBuilder(), "path");
+    assertEquals(byPath.get(HOME_PATH).longValue(), 3L);
+    assertEquals(byPath.get(TEST_PATH).longValue(), 7L);
+    Map<Object, Long> home = store.countBy(
+        Task.newBuilder().setPath(HOME_PATH), "path");
+    assertEquals(home.size(), 1, "Expected only the selected path");
+    assertEquals(home.get(HOME_PATH).longValue(), 3L);
+    assertTrue(store.countBy(Task.newBuilder().setPath("/missing"), "path")
+        .isEmpty(), "Expected no counts for an unknown path");
+    assertEquals(store.min(Task.newBuilder()), 100L);
+    assertEquals(store.max(Task.newBuilder()), 109L);
+    assertEquals(store.max(Task.newBuilder().setPath(HOME_PATH)), 102L);
+  }
+
+  @Test
+  public void testProjectionRead() throws CrudException {
+    CrudStore<Task> store = buildStore();
+    Task task = store.create(Task.newBuilder()
+        .setPath(TEST_PATH)
+        .setRunTime(1)
+        .setData("large payload"));
+    CrudIterator<Task> urns = store.read(Task.newBuilder().setPath(TEST_PATH),
+        FieldMask.newBuilder().addPaths("urn").build());
+    assertTrue(urns.hasNext(), "Expected the task");
+    Task partial = urns.next();
+    assertEquals(partial.getUrn(), task.getUrn());
+    assertFalse(partial.hasData(), "Expected data to be left out");
+    assertFalse(partial.hasPath(), "Expected path to be left out");
+    assertFalse(urns.hasNext(), "Expected one task");
+  }
+
+  @Test(expectedExceptions = CrudException.class)
+  public void testProjectionUnknownField() throws CrudException {
+    buildStore().read(Task.newBuilder(),
+        FieldMask.newBuilder().addPaths("missing").build());
+  }
+
+  @Test
+  public void testPatchUpdate() throws CrudException {
+    CrudStore<Task> store = buildStore();
+    Task task = store.create(Task.newBuilder()
+        .setPath(TEST_PATH)
+        .setRunTime(1)
+        .setData("payload"));
+    FieldMask claim = FieldMask.newBuilder()
+        .addPaths("claim")
+        .addPaths("claimTimeout")
+        .build();
+    Task claimed = store.update(Task.newBuilder()
+        .setUrn(task.getUrn())
+        .setVector(task.getVector())
+        .setClaim("worker")
+        .setClaimTimeout(10), claim);
+    assertEquals(claimed.getClaim(), "worker");
+    assertEquals(claimed.getData(), "payload", "Expected data untouched");
+    assertEquals(claimed.getVector(), task.getVector() + 1);
+    assertEquals(store.readOne(Task.newBuilder().setUrn(task.getUrn())),
+        claimed);
+    try {
+      store.update(Task.newBuilder()
+          .setUrn(task.getUrn())
+          .setVector(task.getVector()), claim);
+      fail("Expected a vector error for an out of date patch");
+    } catch (MessageVectorException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testReadIsSnapshot() throws CrudException {
+    CrudStore<Task> store = buildStore();
+    Task first = store.create(Task.newBuilder().setPath(TEST_PATH).setRunTime(1));
+    CrudIterator<Task> all = store.read(Task.newBuilder());
+    CrudIterator<Task> index = store.read(Task.newBuilder().setPath(TEST_PATH));
+    store.create(Task.newBuilder().setPath(TEST_PATH).setRunTime(2));
+    store.delete(first);
+    assertEquals(all.next(), first, "Expected the version at read time");
+    assertFalse(all.hasNext(), "Later writes should not be visible");
+    assertEquals(index.next(), first, "Expected the index version at read");
+    assertFalse(index.hasNext(), "Later index writes should not be visible");
+  }
+
+  @Test
+  public void testConcurrentReadsDuringWrites() throws Exception {
+    final CrudStore<Task> store = buildStore();
+    final int size = 1000;
+    final List<Task> created = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      created.add(store.create(Task.newBuilder()
+          .setPath(TEST_PATH)
+          .setRunTime(i)));
+    }
+    final AtomicBoolean writing = new AtomicBoolean(true);
+    ExecutorService readers = Executors.newFixedThreadPool(4);
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      results.add(readers.submit(() -> {
+        int reads = 0;
+        do {
+          CrudIterator<Task> tasks = store.read(Task.newBuilder()
+              .setPath(TEST_PATH));
+          int count = 0;
+          long last = Long.MIN_VALUE;
+          while (tasks.hasNext()) {
+            long runTime = tasks.next().getRunTime();
+            assertTrue(last <= runTime, "Expected a sorted snapshot");
+            last = runTime;
+            count++;
+          }
+          assertEquals(count, size, "Updates should not change the count");
+          reads++;
+        } while (writing.get());
+        return reads;
+      }));
+    }
+    Random random = new Random(7);
+    for (int i = 0; i < 2000; i++) {
+      int position = random.nextInt(size);
+      Task updated = store.update(created.get(position).toBuilder()
+          .setRunTime(random.nextInt(size)));
+      created.set(position, updated);
+    }
+    writing.set(false);
+    for (Future<Integer> result : results) {
+      assertTrue(0 < result.get(), "Expected each reader to complete reads");
+    }
+    readers.shutdown();
+  }
+
   private CrudStore<Task> buildStore() {
     return new InMemoryStore.Builder<Task>()
         .setPrototype(Task.newBuilder())
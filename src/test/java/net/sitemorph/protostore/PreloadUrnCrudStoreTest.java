@@ -6,9 +6,17 @@ import net.sitemorph.queue.Tasks.Task;
 
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 
 /**
@@ -69,4 +77,271 @@ public class PreloadUrnCrudStoreTest {
     assertEquals(expect, tasks.next(), "Expected home task");
     assertFalse(tasks.hasNext(), "Didn't expect the other tasks");
   }
+
+  @Test
+  public void testStream() throws CrudException {
+    CrudStore<Task> memoryStore = new InMemoryStore.Builder<Task>()
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .addIndexField("path")
+        .setSortOrder("runTime", SortOrder.ASCENDING)
+        .setVectorField("vector")
+        .build();
+    for (int i = 0; i < 10; i++) {
+      memoryStore.create(Task.newBuilder()
+          .setPath(0 == i % 2 ? "/even" : "/odd")
+          .setRunTime(i));
+    }
+    CrudStore<Task> cacheStore = new PreloadUrnCrudStore.Builder<Task>()
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .addIndexField("path")
+        .setWriteStore(memoryStore)
+        .build();
+    assertTrue(cacheStore.supportsStreams(), "Expected stream support");
+    try (Stream<Task> tasks = cacheStore.stream(Task.newBuilder()
+        .setPath("/odd"))) {
+      assertEquals(tasks.mapToLong(Task::getRunTime).sum(), 25L,
+          "Expected the odd run times");
+    }
+  }
+
+  @Test
+  public void testWriteBehind() throws CrudException {
+    CrudStore<Task> memoryStore = new InMemoryStore.Builder<Task>()
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .addIndexField("path")
+        .setSortOrder("runTime", SortOrder.ASCENDING)
+        .setVectorField("vector")
+        .build();
+    Task kept = memoryStore.create(Task.newBuilder()
+        .setPath("/kept")
+        .setRunTime(1));
+    Task dropped = memoryStore.create(Task.newBuilder()
+        .setPath("/dropped")
+        .setRunTime(2));
+    PreloadUrnCrudStore<Task> cacheStore =
+        new PreloadUrnCrudStore.Builder<Task>()
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .setVectorField("vector")
+        .setWriteStore(memoryStore)
+        .setWriteBehind(true)
+        .setFlushDelayMillis(1000)
+        .build();
+    Task first = cacheStore.update(kept.toBuilder().setRunTime(10));
+    Task second = cacheStore.update(first.toBuilder().setRunTime(20));
+    assertEquals(second.getVector(), kept.getVector() + 2,
+        "Expected each update to move the cached vector");
+    assertEquals(cacheStore.readOne(Task.newBuilder().setUrn(kept.getUrn())),
+        second, "Expected the update to be cached immediately");
+    try {
+      cacheStore.update(first.toBuilder().setRunTime(15));
+      fail("Expected a copy from before the last update to fail");
+    } catch (MessageVectorException e) {
+      // expected
+    }
+    cacheStore.delete(dropped);
+    cacheStore.flush();
+    Task stored = memoryStore.readOne(Task.newBuilder()
+        .setUrn(kept.getUrn()));
+    assertEquals(stored, second.toBuilder()
+        .setVector(kept.getVector() + 1)
+        .build(), "Expected the last update written as one update");
+    assertEquals(cacheStore.readOne(Task.newBuilder().setUrn(kept.getUrn())),
+        second, "Expected the cached vector not to move back");
+    assertEquals(cacheStore.readPage(Task.newBuilder(), null, 10)
+        .getMessages().get(0), second, "Expected pages of the cached copy");
+    assertFalse(memoryStore.read(Task.newBuilder().setUrn(dropped.getUrn()))
+        .hasNext(), "Expected the delete to be written");
+    try {
+      cacheStore.update(first.toBuilder().setRunTime(15));
+      fail("Expected a stale copy to fail after the flush");
+    } catch (MessageVectorException e) {
+      // expected
+    }
+    Task third = cacheStore.update(second.toBuilder().setRunTime(30));
+    assertEquals(third.getVector(), kept.getVector() + 3,
+        "Expected the cached vector to move on");
+    cacheStore.close();
+    assertEquals(memoryStore.readOne(Task.newBuilder().setUrn(kept.getUrn())),
+        third.toBuilder().setVector(kept.getVector() + 2).build(),
+        "Expected close to write the update against the stored vector");
+  }
+
+  @Test
+  public void testWriteBehindFailureReloads() throws Exception {
+    CrudStore<Task> memoryStore = new InMemoryStore.Builder<Task>()
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .setSortOrder("runTime", SortOrder.ASCENDING)
+        .setVectorField("vector")
+        .build();
+    Task task = memoryStore.create(Task.newBuilder()
+        .setPath("/task")
+        .setRunTime(1));
+    PreloadUrnCrudStore<Task> cacheStore =
+        new PreloadUrnCrudStore.Builder<Task>()
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .setVectorField("vector")
+        .setWriteStore(memoryStore)
+        .setWriteBehind(true)
+        .setFlushDelayMillis(0)
+        .build();
+    // written behind the cache so the queued write is rejected
+    Task behind = memoryStore.update(task.toBuilder().setData("behind"));
+    cacheStore.update(task.toBuilder().setData("lost"));
+    Task.Builder urn = Task.newBuilder().setUrn(task.getUrn());
+    long deadline = System.currentTimeMillis() + 5000;
+    while (!"behind".equals(cacheStore.readOne(urn).getData())) {
+      assertTrue(System.currentTimeMillis() < deadline,
+          "Expected the failed write to be reloaded without a flush");
+      Thread.sleep(10);
+    }
+    assertEquals(cacheStore.readOne(urn), behind,
+        "Expected the stored version cached");
+    try {
+      cacheStore.flush();
+      fail("Expected flush to report the failed write");
+    } catch (CrudException e) {
+      // expected
+    }
+    cacheStore.flush();
+    cacheStore.close();
+  }
+
+  @Test
+  public void testIndexFollowsWrites() throws CrudException {
+    CrudStore<Task> memoryStore = new InMemoryStore.Builder<Task>()
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .addIndexField("path")
+        .setSortOrder("runTime", SortOrder.ASCENDING)
+        .setVectorField("vector")
+        .build();
+    for (int i = 0; i < 4; i++) {
+      memoryStore.create(Task.newBuilder()
+          .setPath("/before")
+          .setRunTime(i));
+    }
+    CrudStore<Task> cacheStore = new PreloadUrnCrudStore.Builder<Task>()
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .addIndexField("path")
+        .setWriteStore(memoryStore)
+        .build();
+    // move each task to the other path while iterating the index read
+    CrudIterator<Task> tasks = cacheStore.read(Task.newBuilder()
+        .setPath("/before"));
+    while (tasks.hasNext()) {
+      cacheStore.update(tasks.next().toBuilder().setPath("/after"));
+    }
+    tasks.close();
+    assertFalse(cacheStore.read(Task.newBuilder().setPath("/before"))
+        .hasNext(), "Expected no tasks left under the old path");
+    Task moved = cacheStore.readOne(Task.newBuilder().setPath("/after"));
+    cacheStore.delete(moved);
+    int count = 0;
+    tasks = cacheStore.read(Task.newBuilder().setPath("/after"));
+    while (tasks.hasNext()) {
+      assertEquals(tasks.next().getPath(), "/after", "Expected index match");
+      count++;
+    }
+    assertEquals(count, 3, "Expected the deleted task to leave the index");
+  }
+
+  @Test
+  public void testFailedDeleteKeepsCached() throws CrudException {
+    CrudStore<Task> memoryStore = new InMemoryStore.Builder<Task>()
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .addIndexField("path")
+        .setSortOrder("runTime", SortOrder.ASCENDING)
+        .setVectorField("vector")
+        .build();
+    Task stale = memoryStore.create(Task.newBuilder()
+        .setPath("/kept")
+        .setRunTime(1));
+    CrudStore<Task> cacheStore = new PreloadUrnCrudStore.Builder<Task>()
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .addIndexField("path")
+        .setWriteStore(memoryStore)
+        .build();
+    Task current = cacheStore.update(stale.toBuilder().setRunTime(2));
+    try {
+      cacheStore.delete(stale);
+      fail("Expected the stale delete to be rejected");
+    } catch (MessageVectorException e) {
+      // expected
+    }
+    assertEquals(cacheStore.readOne(Task.newBuilder().setUrn(stale.getUrn())),
+        current, "Expected the task to stay cached");
+    assertEquals(cacheStore.readOne(Task.newBuilder().setPath("/kept")),
+        current, "Expected the task to stay indexed");
+  }
+
+  @Test
+  public void testConcurrentWrites() throws Exception {
+    CrudStore<Task> memoryStore = new InMemoryStore.Builder<Task>()
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .addIndexField("path")
+        .setSortOrder("runTime", SortOrder.ASCENDING)
+        .setVectorField("vector")
+        .build();
+    for (int i = 0; i < 8; i++) {
+      memoryStore.create(Task.newBuilder()
+          .setPath("/even")
+          .setRunTime(i));
+    }
+    CrudStore<Task> cacheStore = new PreloadUrnCrudStore.Builder<Task>()
+        .setPrototype(Task.newBuilder())
+        .setUrnField("urn")
+        .addIndexField("path")
+        .setWriteStore(memoryStore)
+        .build();
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int writer = 0; writer < 4; writer++) {
+        futures.add(executor.submit(() -> {
+          for (int round = 0; round < 50; round++) {
+            CrudIterator<Task> tasks = cacheStore.read(Task.newBuilder());
+            while (tasks.hasNext()) {
+              Task task = tasks.next();
+              try {
+                cacheStore.update(task.toBuilder()
+                    .setPath(0 == round % 2 ? "/odd" : "/even"));
+              } catch (MessageVectorException e) {
+                // another writer got there first
+              }
+            }
+            tasks.close();
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+    int count = 0;
+    for (String path : new String[] {"/even", "/odd"}) {
+      CrudIterator<Task> tasks = cacheStore.read(Task.newBuilder()
+          .setPath(path));
+      while (tasks.hasNext()) {
+        Task task = tasks.next();
+        assertEquals(task.getPath(), path, "Expected index match");
+        assertEquals(task, memoryStore.readOne(Task.newBuilder()
+            .setUrn(task.getUrn())), "Expected the cache to match the store");
+        count++;
+      }
+    }
+    assertEquals(count, 8, "Expected each task indexed once");
+  }
 }
@@ -0,0 +1,646 @@
+package net.sitemorph.protostore;
+
+import com.google.protobuf.FieldMask;
+import net.sitemorph.protostore.sql.AutoNamedFactory;
+import net.sitemorph.protostore.sql.UrnCrudStore;
+import net.sitemorph.queue.Tasks.Task;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+/**
+ * Tests for the urn SQL store against an in memory H2 database.
+ */
+public class UrnCrudStoreTest {
+
+  // run times with repeats so pages split runs of equal sort values
+  private static final long[] RUN_TIMES = {3, 1, 2, 1, 3, 1, 2};
+
+  private String url;
+  private Connection connection;
+
+  @BeforeMethod
+  public void createTable() throws SQLException {
+    url = "jdbc:h2:mem:urn" + System.nanoTime() + ";MODE=MySQL";
+    connection = DriverManager.getConnection(url);
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE Task (urn VARCHAR(64) PRIMARY KEY, " +
+          "path VARCHAR(64), runTime BIGINT, data VARCHAR(255), " +
+          "vector BIGINT, claim VARCHAR(64), claimTimeout BIGINT)");
+    }
+  }
+
+  @AfterMethod
+  public void closeConnection() throws SQLException {
+    connection.close();
+  }
+
+  private UrnCrudStore<Task> getStore(SortOrder order) throws CrudException {
+    return getStore(order, false);
+  }
+
+  private UrnCrudStore<Task> getStore(SortOrder order,
+      boolean directFieldAccess) throws CrudException {
+    return new UrnCrudStore.Builder<Task>()
+        .setConnection(connection)
+        .setDirectFieldAccess(directFieldAccess)
+        .setPrototype(Task.newBuilder())
+        .setTableName("Task")
+        .setUrnField("urn")
+        .setVectorField("vector")
+        .addIndexField("path")
+        .setSortOrder("runTime", order)
+        .build();
+  }
+
+  private List<Task> createTasks(CrudStore<Task> store) throws CrudException {
+    List<Task> tasks = new ArrayList<>();
+    for (int i = 0; i < RUN_TIMES.length; i++) {
+      tasks.add(store.create(Task.newBuilder()
+          .setPath(0 == i % 2 ? "/even" : "/odd")
+          .setRunTime(RUN_TIMES[i])));
+    }
+    return tasks;
+  }
+
+  private List<String> readPages(CrudStore<Task> store,
+      Task.Builder prototype, int pageSize) throws CrudException {
+    List<String> result = new ArrayList<>();
+    String token = null;
+    do {
+      CrudPage<Task> page = store.readPage(prototype, token, pageSize);
+      assertTrue(page.getMessages().size() <= pageSize,
+          "Expected no more than the page size");
+      result.addAll(urns(page.getMessages()));
+      token = page.getNextPageToken();
+    } while (null != token);
+    return result;
+  }
+
+  private static List<String> urns(List<Task> tasks) {
+    return tasks.stream().map(Task::getUrn).collect(Collectors.toList());
+  }
+
+  private static List<Task> readAll(CrudIterator<Task> tasks)
+      throws CrudException {
+    List<Task> result = new ArrayList<>();
+    while (tasks.hasNext()) {
+      result.add(tasks.next());
+    }
+    tasks.close();
+    return result;
+  }
+
+  @Test
+  public void testPagesAscending() throws CrudException {
+    UrnCrudStore<Task> store = getStore(SortOrder.ASCENDING);
+    List<Task> tasks = createTasks(store);
+    tasks.sort(Comparator.comparing(Task::getRunTime)
+        .thenComparing(Task::getUrn));
+    for (int pageSize = 1; pageSize <= tasks.size(); pageSize++) {
+      assertEquals(readPages(store, Task.newBuilder(), pageSize), urns(tasks),
+          "Expected run time then urn order for page size " + pageSize);
+    }
+  }
+
+  @Test
+  public void testPagesDescending() throws CrudException {
+    UrnCrudStore<Task> store = getStore(SortOrder.DESCENDING);
+    List<Task> tasks = createTasks(store);
+    // equal run times are still ordered by ascending urn
+    tasks.sort(Comparator.comparing(Task::getRunTime).reversed()
+        .thenComparing(Task::getUrn));
+    for (int pageSize = 1; pageSize <= tasks.size(); pageSize++) {
+      assertEquals(readPages(store, Task.newBuilder(), pageSize), urns(tasks),
+          "Expected descending run time order for page size " + pageSize);
+    }
+  }
+
+  @Test
+  public void testPagesOfIndex() throws CrudException {
+    UrnCrudStore<Task> store = getStore(SortOrder.ASCENDING);
+    List<Task> even = createTasks(store).stream()
+        .filter(task -> task.getPath().equals("/even"))
+        .sorted(Comparator.comparing(Task::getRunTime)
+            .thenComparing(Task::getUrn))
+        .collect(Collectors.toList());
+    assertEquals(readPages(store, Task.newBuilder().setPath("/even"), 2),
+        urns(even), "Expected only the even path tasks in order");
+  }
+
+  @Test
+  public void testRangeBounds() throws CrudException {
+    UrnCrudStore<Task> store = getStore(SortOrder.ASCENDING);
+    createTasks(store);
+    List<Task> between = readAll(store.read(Task.newBuilder(),
+        new RangeQuery.Builder()
+            .setLowerBound(2L)
+            .setUpperBound(3L)
+            .build()));
+    assertEquals(between.stream().map(Task::getRunTime)
+        .collect(Collectors.toList()), asList(2, 2, 3, 3),
+        "Expected the inclusive range in order");
+    List<Task> below = readAll(store.read(Task.newBuilder().setPath("/even"),
+        new RangeQuery.Builder()
+            .setUpperBound(3L)
+            .setDirection(SortOrder.DESCENDING)
+            .setLimit(3)
+            .build()));
+    assertEquals(below.stream().map(Task::getRunTime)
+        .collect(Collectors.toList()), asList(3, 3, 2),
+        "Expected the highest three even path tasks up to the bound");
+    for (Task task : below) {
+      assertEquals(task.getPath(), "/even", "Expected index match");
+    }
+    List<Task> above = readAll(store.read(Task.newBuilder(),
+        new RangeQuery.Builder()
+            .setLowerBound(3L)
+            .build()));
+    assertEquals(above.size(), 2, "Expected the tasks from the lower bound");
+    assertFalse(store.read(Task.newBuilder(), new RangeQuery.Builder()
+        .setLowerBound(4L)
+        .build()).hasNext(), "Expected nothing past the last run time");
+  }
+
+  @Test
+  public void testProjectionColumns() throws CrudException {
+    UrnCrudStore<Task> store = getStore(SortOrder.ASCENDING);
+    List<Task> tasks = createTasks(store);
+    Task claimed = store.update(tasks.get(0).toBuilder()
+        .setClaim("worker")
+        .setData("payload"));
+    // mask paths out of descriptor order still map to the right columns
+    FieldMask mask = FieldMask.newBuilder()
+        .addPaths("claim")
+        .addPaths("runTime")
+        .addPaths("urn")
+        .build();
+    for (boolean direct : new boolean[] {false, true}) {
+      List<Task> projected = readAll(getStore(SortOrder.ASCENDING, direct)
+          .read(Task.newBuilder().setUrn(claimed.getUrn()), mask));
+      assertEquals(projected.size(), 1, "Expected the task by urn");
+      Task partial = projected.get(0);
+      assertEquals(partial.getUrn(), claimed.getUrn(), "Expected the urn");
+      assertEquals(partial.getRunTime(), claimed.getRunTime(),
+          "Expected the run time");
+      assertEquals(partial.getClaim(), "worker", "Expected the claim");
+      assertFalse(partial.hasPath(), "Didn't expect the path");
+      assertFalse(partial.hasData(), "Didn't expect the data");
+      assertFalse(partial.hasVector(), "Didn't expect the vector");
+    }
+    List<Task> ordered = readAll(store.read(Task.newBuilder(),
+        FieldMask.newBuilder().addPaths("runTime").build()));
+    assertEquals(ordered.stream().map(Task::getRunTime)
+        .collect(Collectors.toList()), asList(1, 1, 1, 2, 2, 3, 3),
+        "Expected projections in sort order");
+  }
+
+  @Test
+  public void testDataSourceReturnsConnections() throws Exception {
+    JdbcConnectionPool pool = JdbcConnectionPool.create(url, "", "");
+    // fewer connections than writers so a held connection stalls the test
+    pool.setMaxConnections(2);
+    pool.setLoginTimeout(5);
+    try {
+      UrnCrudStore<Task> store = new UrnCrudStore.Builder<Task>()
+          .setDataSource(pool)
+          .setPrototype(Task.newBuilder())
+          .setTableName("Task")
+          .setUrnField("urn")
+          .setVectorField("vector")
+          .addIndexField("path")
+          .setSortOrder("runTime", SortOrder.ASCENDING)
+          .build();
+      assertEquals(pool.getActiveConnections(), 0,
+          "Expected build to give back its connection");
+      ExecutorService executor = Executors.newFixedThreadPool(4);
+      try {
+        List<Future<?>> writers = new ArrayList<>();
+        for (int writer = 0; writer < 4; writer++) {
+          writers.add(executor.submit(() -> {
+            for (int i = 0; i < 10; i++) {
+              Task task = store.create(Task.newBuilder()
+                  .setPath("/shared")
+                  .setRunTime(i));
+              store.update(task.toBuilder().setData("updated"));
+              readAll(store.read(Task.newBuilder().setUrn(task.getUrn())));
+            }
+            return null;
+          }));
+        }
+        for (Future<?> writer : writers) {
+          writer.get();
+        }
+      } finally {
+        executor.shutdown();
+      }
+      assertEquals(store.count(Task.newBuilder()), 40L,
+          "Expected every write");
+      assertEquals(pool.getActiveConnections(), 0,
+          "Expected every operation to give back its connection");
+      CrudIterator<Task> partial = store.read(Task.newBuilder());
+      assertTrue(partial.hasNext(), "Expected tasks");
+      assertEquals(pool.getActiveConnections(), 1,
+          "Expected an open iterator to hold its connection");
+      partial.close();
+      assertEquals(pool.getActiveConnections(), 0,
+          "Expected a closed iterator to give back its connection");
+
+      // a factory holds no connections between operations either
+      AutoNamedFactory factory = AutoNamedFactory.newBuilder(pool)
+          .registerIndexName("path")
+          .registerMessage(Task.newBuilder())
+          .build();
+      CrudStore<Task> named = factory.getCrudStore(Task.newBuilder());
+      assertEquals(named.count(Task.newBuilder().setPath("/shared")), 40L,
+          "Expected the factory store to read the same table");
+      assertEquals(pool.getActiveConnections(), 0,
+          "Expected the factory to give back its connections");
+      store.close();
+      named.close();
+    } finally {
+      pool.dispose();
+    }
+  }
+
+  @Test
+  public void testFactoryRetriesFailedBuild() throws Exception {
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("ALTER TABLE Task RENAME TO Pending");
+    }
+    AutoNamedFactory factory = AutoNamedFactory.newBuilder(connection)
+        .registerMessage(Task.newBuilder())
+        .build();
+    try {
+      factory.getCrudStore(Task.newBuilder());
+      fail("Expected the build to fail without a table");
+    } catch (CrudException e) {
+      // expected
+    }
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("ALTER TABLE Pending RENAME TO Task");
+    }
+    CrudStore<Task> store = factory.getCrudStore(Task.newBuilder());
+    assertEquals(store.count(Task.newBuilder()), 0L,
+        "Expected the store to be built on the next request");
+  }
+
+  private UrnCrudStore<Task> getStore(Connection recorded, SortOrder order,
+      int fetchSize) throws CrudException {
+    UrnCrudStore.Builder<Task> builder = new UrnCrudStore.Builder<Task>()
+        .setConnection(recorded)
+        .setPrototype(Task.newBuilder())
+        .setTableName("Task")
+        .setUrnField("urn")
+        .setVectorField("vector");
+    if (null != order) {
+      builder.setSortOrder("runTime", order);
+    }
+    if (Integer.MIN_VALUE == fetchSize) {
+      builder.setStreaming(true);
+    } else {
+      builder.setFetchSize(fetchSize);
+    }
+    return builder.build();
+  }
+
+  @Test
+  public void testFetchSizeReads() throws CrudException {
+    Recorder recorder = new Recorder();
+    Connection recorded = recorder.wrap(connection);
+    List<Task> tasks = createTasks(getStore(SortOrder.ASCENDING));
+    UrnCrudStore<Task> store = getStore(recorded, SortOrder.ASCENDING, 2);
+    assertEquals(readAll(store.read(Task.newBuilder())).size(), tasks.size(),
+        "Expected every row across several fetches");
+    assertEquals(recorder.fetchSizes, Collections.singletonList(2),
+        "Expected the read to set the fetch size");
+    assertEquals(recorder.resultTypes, Collections.singletonList(
+        ResultSet.TYPE_FORWARD_ONLY), "Expected a forward only read");
+
+    recorder = new Recorder();
+    UrnCrudStore<Task> streamed = getStore(recorder.wrap(connection),
+        SortOrder.ASCENDING, Integer.MIN_VALUE);
+    CrudIterator<Task> rows = streamed.read(Task.newBuilder());
+    assertEquals(recorder.fetchSizes,
+        Collections.singletonList(Integer.MIN_VALUE),
+        "Expected the streaming fetch size");
+    assertEquals(recorder.resultTypes, Collections.singletonList(
+        ResultSet.TYPE_FORWARD_ONLY), "Expected a forward only stream");
+    assertEquals(urns(readAll(rows)),
+        urns(readAll(store.read(Task.newBuilder()))),
+        "Expected the streamed rows in sort order");
+  }
+
+  @Test
+  public void testStreamReadsLazily() throws CrudException {
+    Recorder recorder = new Recorder();
+    List<Task> tasks = createTasks(getStore(SortOrder.ASCENDING));
+    UrnCrudStore<Task> store = getStore(recorder.wrap(connection),
+        SortOrder.ASCENDING, 0);
+
+    Stream<Task> first = store.stream(Task.newBuilder());
+    assertEquals(recorder.rowsRead, 0, "Expected no rows read on open");
+    assertEquals(first.findFirst().get().getRunTime(), 1L,
+        "Expected the first task in sort order");
+    assertEquals(recorder.rowsRead, 1, "Expected find first to read one row");
+    assertEquals(recorder.openResults, 1,
+        "Expected the result set open until the stream is closed");
+    first.close();
+    assertEquals(recorder.openResults, 0,
+        "Expected closing the stream to close the result set");
+
+    recorder.rowsRead = 0;
+    try (Stream<Task> limited = store.stream(Task.newBuilder())) {
+      assertEquals(limited.limit(2).map(Task::getRunTime)
+          .collect(Collectors.toList()), asList(1, 1),
+          "Expected the first two tasks in sort order");
+    }
+    assertEquals(recorder.rowsRead, 2, "Expected limit to stop reading");
+    assertEquals(recorder.openResults, 0,
+        "Expected the limited stream to close its result set");
+
+    assertEquals(store.stream(Task.newBuilder()).count(), tasks.size(),
+        "Expected every task");
+    assertEquals(recorder.openResults, 0,
+        "Expected a drained stream to close its result set");
+  }
+
+  @Test
+  public void testStreamOrderedBySortField() throws CrudException {
+    createTasks(getStore(SortOrder.ASCENDING));
+    try (Stream<Task> sorted = getStore(SortOrder.DESCENDING)
+        .stream(Task.newBuilder())) {
+      assertTrue(sorted.spliterator().hasCharacteristics(
+          Spliterator.ORDERED), "Expected a sorted store stream ordered");
+    }
+    try (Stream<Task> unsorted = getStore(connection, null, 0)
+        .stream(Task.newBuilder())) {
+      assertFalse(unsorted.spliterator().hasCharacteristics(
+          Spliterator.ORDERED), "Expected an unsorted store stream unordered");
+    }
+  }
+
+  /**
+   * Records the queries run through a wrapped connection. H2 has no
+   * streaming fetch size so that isn't passed on to the driver.
+   */
+  private static final class Recorder {
+
+    private final List<Integer> fetchSizes = new ArrayList<>();
+    private final List<Integer> resultTypes = new ArrayList<>();
+    private int rowsRead = 0;
+    private int openResults = 0;
+
+    Connection wrap(Connection connection) {
+      return proxy(Connection.class, (proxy, method, args) -> {
+        Object result = invoke(connection, method, args);
+        if (!method.getName().equals("prepareStatement")) {
+          return result;
+        }
+        int resultType = 3 == args.length ? (Integer) args[1] :
+            ResultSet.TYPE_FORWARD_ONLY;
+        return wrap((PreparedStatement) result, resultType);
+      });
+    }
+
+    private PreparedStatement wrap(PreparedStatement statement,
+        int resultType) {
+      return proxy(PreparedStatement.class, (proxy, method, args) -> {
+        switch (method.getName()) {
+          case "setFetchSize":
+            fetchSizes.add((Integer) args[0]);
+            if (0 > (Integer) args[0]) {
+              return null;
+            }
+            break;
+          case "executeQuery":
+            resultTypes.add(resultType);
+            openResults++;
+            return wrap((ResultSet) invoke(statement, method, args));
+          default:
+            break;
+        }
+        return invoke(statement, method, args);
+      });
+    }
+
+    private ResultSet wrap(ResultSet resultSet) {
+      boolean[] closed = {false};
+      return proxy(ResultSet.class, (proxy, method, args) -> {
+        Object result = invoke(resultSet, method, args);
+        if (method.getName().equals("next") && (Boolean) result) {
+          rowsRead++;
+        } else if (method.getName().equals("close") && !closed[0]) {
+          closed[0] = true;
+          openResults--;
+        }
+        return result;
+      });
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <P> P proxy(Class<P> type, InvocationHandler handler) {
+    return (P) Proxy.newProxyInstance(UrnCrudStoreTest.class.getClassLoader(),
+        new Class<?>[] {type}, handler);
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args)
+      throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  @Test
+  public void testAggregates() throws CrudException {
+    UrnCrudStore<Task> store = getStore(SortOrder.ASCENDING);
+    assertNull(store.min(Task.newBuilder()), "Expected no minimum when empty");
+    assertNull(store.max(Task.newBuilder()), "Expected no maximum when empty");
+    assertEquals(store.countBy(Task.newBuilder(), "path"),
+        Collections.emptyMap(), "Expected no groups when empty");
+    createTasks(store);
+    store.create(Task.newBuilder()
+        .setPath("/odd")
+        .setRunTime(0));
+    assertEquals(store.count(Task.newBuilder()), 8L, "Expected every task");
+    assertEquals(store.count(Task.newBuilder().setPath("/even")), 4L,
+        "Expected the even path tasks");
+    Map<Object, Long> counts = new HashMap<>();
+    counts.put("/even", 4L);
+    counts.put("/odd", 4L);
+    assertEquals(store.countBy(Task.newBuilder(), "path"), counts,
+        "Expected a count per path");
+    assertEquals(store.countBy(Task.newBuilder().setPath("/odd"), "path"),
+        Collections.singletonMap("/odd", 4L), "Expected the selected path");
+    assertEquals(store.min(Task.newBuilder()), 0L,
+        "Expected a zero minimum rather than none");
+    assertEquals(store.max(Task.newBuilder()), 3L, "Expected the maximum");
+    assertEquals(store.min(Task.newBuilder().setPath("/even")), 2L,
+        "Expected the minimum of the even path");
+    assertNull(store.max(Task.newBuilder().setPath("/none")),
+        "Expected no maximum without a match");
+  }
+
+  @Test
+  public void testPatchUpdate() throws CrudException {
+    UrnCrudStore<Task> store = getStore(SortOrder.ASCENDING);
+    Task created = store.create(Task.newBuilder()
+        .setPath("/patch")
+        .setRunTime(5)
+        .setData("original"));
+    FieldMask claim = FieldMask.newBuilder().addPaths("claim").build();
+    Task patched = store.update(created.toBuilder()
+        .setClaim("worker")
+        .setData("ignored")
+        .setRunTime(6), claim);
+    assertEquals(patched.getVector(), created.getVector() + 1,
+        "Expected the patch to move the vector on");
+    Task stored = store.readOne(Task.newBuilder().setUrn(created.getUrn()));
+    assertEquals(stored.getClaim(), "worker", "Expected the masked field");
+    assertEquals(stored.getData(), "original",
+        "Expected fields outside the mask untouched");
+    assertEquals(stored.getRunTime(), 5L,
+        "Expected fields outside the mask untouched");
+    assertEquals(stored.getVector(), patched.getVector(),
+        "Expected the stored vector moved on");
+    try {
+      store.update(created.toBuilder().setClaim("late"), claim);
+      fail("Expected a stale patch to fail");
+    } catch (MessageVectorException e) {
+      // expected
+    }
+    try {
+      store.update(stored.toBuilder(),
+          FieldMask.newBuilder().addPaths("unknown").build());
+      fail("Expected an unknown mask path to fail");
+    } catch (CrudException e) {
+      assertFalse(e instanceof MessageVectorException,
+          "Expected the mask to be rejected");
+    }
+    assertEquals(store.readOne(Task.newBuilder().setUrn(created.getUrn())),
+        stored, "Expected failed patches to leave the row alone");
+  }
+
+  @Test
+  public void testDuplicateUrnNotRetried() throws CrudException {
+    AtomicInteger generated = new AtomicInteger();
+    UrnCrudStore<Task> store = new UrnCrudStore.Builder<Task>()
+        .setConnection(connection)
+        .setPrototype(Task.newBuilder())
+        .setTableName("Task")
+        .setUrnField("urn")
+        .setVectorField("vector")
+        .setUrnGenerator(() -> {
+          generated.incrementAndGet();
+          return "duplicate";
+        })
+        .build();
+    Task created = store.create(Task.newBuilder()
+        .setPath("/first")
+        .setRunTime(1));
+    assertEquals(created.getUrn(), "duplicate", "Expected the generated urn");
+    try {
+      store.create(Task.newBuilder().setPath("/second").setRunTime(2));
+      fail("Expected the duplicate urn to fail");
+    } catch (CrudException e) {
+      // expected
+    }
+    assertEquals(generated.get(), 2, "Expected one insert per create");
+    assertEquals(store.readOne(Task.newBuilder().setUrn("duplicate"))
+        .getPath(), "/first", "Expected the first create kept");
+  }
+
+  @Test
+  public void testBatchRowFailures() throws Exception {
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("ALTER TABLE Task ADD CONSTRAINT positiveRunTime " +
+          "CHECK (runTime >= 0)");
+    }
+    UrnCrudStore<Task> store = getStore(SortOrder.ASCENDING);
+    List<Task.Builder> builders = new ArrayList<>();
+    builders.add(Task.newBuilder().setPath("/a").setRunTime(1));
+    builders.add(Task.newBuilder().setPath("/b").setRunTime(-1));
+    builders.add(Task.newBuilder().setPath("/c").setRunTime(3));
+    List<Task> created = new ArrayList<>();
+    try {
+      store.createAll(builders);
+      fail("Expected the negative run time row to fail");
+    } catch (CrudBatchException e) {
+      assertEquals(e.getFailures().keySet(), Collections.singleton(1),
+          "Expected only the negative run time row to fail");
+      assertFalse(e.getFailures().get(1) instanceof MessageVectorException,
+          "Expected a constraint failure");
+      assertNull(e.getResults().get(1), "Expected no failed row result");
+      for (int row : new int[] {0, 2}) {
+        Task task = (Task) e.getResults().get(row);
+        assertEquals(task.getRunTime(), builders.get(row).getRunTime(),
+            "Expected the row result in place");
+        created.add(task);
+      }
+    }
+    assertEquals(urns(readAll(store.read(Task.newBuilder()))), urns(created),
+        "Expected the other rows written");
+    Task stale = created.get(0);
+    store.update(stale.toBuilder().setData("moved"));
+    List<Task.Builder> updates = new ArrayList<>();
+    updates.add(created.get(1).toBuilder().setData("first"));
+    updates.add(stale.toBuilder().setData("lost"));
+    try {
+      store.updateAll(updates);
+      fail("Expected the stale row to fail");
+    } catch (CrudBatchException e) {
+      assertEquals(e.getFailures().keySet(), Collections.singleton(1),
+          "Expected only the stale row to fail");
+      assertTrue(e.getFailures().get(1) instanceof MessageVectorException,
+          "Expected a vector failure");
+      assertEquals(((Task) e.getResults().get(0)).getData(), "first",
+          "Expected the first row result");
+      assertNull(e.getResults().get(1), "Expected no stale row result");
+    }
+    assertEquals(store.readOne(Task.newBuilder().setUrn(stale.getUrn()))
+        .getData(), "moved", "Expected the stale row left alone");
+  }
+
+  private static List<Long> asList(long... values) {
+    List<Long> result = new ArrayList<>();
+    for (long value : values) {
+      result.add(value);
+    }
+    return result;
+  }
+}